@@ -0,0 +1,115 @@
+package surfstore;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.SimpleAnswer;
+
+/**
+ * BlockStoreImpl behind an in-process gRPC server. The nested subclasses run
+ * the same benchmarks at 1, 4 and 16 client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class BlockStoreBenchmark {
+    private static final int NUM_BLOCKS = 1024;
+
+    @Param({"4096", "65536"})
+    public int blockSize;
+
+    private Server server;
+    private ManagedChannel channel;
+    private BlockStoreGrpc.BlockStoreBlockingStub stub;
+    private Block[] blocks;
+    private Block[] hashes;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = new Random().nextInt(NUM_BLOCKS);
+
+        int next() {
+            next = (next + 1) % NUM_BLOCKS;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String name = "blockstore-bench-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new BlockStore.BlockStoreImpl())
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        stub = BlockStoreGrpc.newBlockingStub(channel);
+
+        Random random = new Random(42);
+        blocks = new Block[NUM_BLOCKS];
+        hashes = new Block[NUM_BLOCKS];
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            byte[] data = new byte[blockSize];
+            random.nextBytes(data);
+            String hash = HashUtils.sha256(data);
+            blocks[i] = Block.newBuilder().setHash(hash).setData(ByteString.copyFrom(data)).build();
+            hashes[i] = Block.newBuilder().setHash(hash).build();
+            stub.storeBlock(blocks[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Object storeBlock(Cursor cursor) {
+        return stub.storeBlock(blocks[cursor.next()]);
+    }
+
+    @Benchmark
+    public Block getBlock(Cursor cursor) {
+        return stub.getBlock(hashes[cursor.next()]);
+    }
+
+    @Benchmark
+    public SimpleAnswer hasBlock(Cursor cursor) {
+        return stub.hasBlock(hashes[cursor.next()]);
+    }
+
+    @Threads(1)
+    public static class OneThread extends BlockStoreBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends BlockStoreBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends BlockStoreBenchmark {
+    }
+}
@@ -0,0 +1,80 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing cost per block and per file. Multiply ops/s by the block or file
+ * size to get bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashUtilsBenchmark {
+
+    @State(Scope.Thread)
+    public static class BlockState {
+        @Param({"4096", "65536", "1048576"})
+        public int blockSize;
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            data = new byte[blockSize];
+            new Random(42).nextBytes(data);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileState {
+        @Param({"1048576", "16777216"})
+        public int fileSize;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            byte[] data = new byte[fileSize];
+            new Random(42).nextBytes(data);
+            file = File.createTempFile("surfstore-hash", ".bin");
+            Files.write(file.toPath(), data);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public String sha256(BlockState state) {
+        return HashUtils.sha256(state.data);
+    }
+
+    @Benchmark
+    public List<String> computeHashlist(BlockState block, FileState state) throws IOException {
+        return HashUtils.compute_hashlist(state.file.getPath(), new HashMap<String, byte[]>(), block.blockSize);
+    }
+}
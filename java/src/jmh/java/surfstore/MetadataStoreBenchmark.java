@@ -0,0 +1,139 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.ByteString;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * A leader MetadataStoreImpl replicating to two followers, with a BlockStoreImpl,
+ * all on in-process gRPC. modifyFile includes the hasBlock checks and the full
+ * 2-phase replication round.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class MetadataStoreBenchmark {
+    private static final String READ_FILE = "read.bin";
+    private static final AtomicInteger writers = new AtomicInteger();
+
+    @Param({"1", "256"})
+    public int numBlocks;
+
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private MetadataStoreGrpc.MetadataStoreBlockingStub leader;
+    private List<String> blocklist;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        String filename;
+        int version;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            filename = "write-" + writers.incrementAndGet() + ".bin";
+            version = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String prefix = "metadata-bench-" + System.nanoTime() + "-";
+        start(prefix + "block", new BlockStore.BlockStoreImpl());
+        start(prefix + "follower1", new MetadataStore.MetadataStoreImpl(
+                channel(prefix + "block"), channel(prefix + "leader")));
+        start(prefix + "follower2", new MetadataStore.MetadataStoreImpl(
+                channel(prefix + "block"), channel(prefix + "leader")));
+        start(prefix + "leader", new MetadataStore.MetadataStoreImpl(
+                channel(prefix + "block"), Arrays.asList(channel(prefix + "follower1"), channel(prefix + "follower2"))));
+
+        BlockStoreGrpc.BlockStoreBlockingStub blockStub = BlockStoreGrpc.newBlockingStub(channel(prefix + "block"));
+        leader = MetadataStoreGrpc.newBlockingStub(channel(prefix + "leader"));
+
+        Random random = new Random(42);
+        blocklist = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            byte[] data = new byte[4096];
+            random.nextBytes(data);
+            String hash = HashUtils.sha256(data);
+            blockStub.storeBlock(Block.newBuilder().setHash(hash).setData(ByteString.copyFrom(data)).build());
+            blocklist.add(hash);
+        }
+        WriteResult result = leader.modifyFile(FileInfo.newBuilder()
+                .setFilename(READ_FILE).setVersion(1).addAllBlocklist(blocklist).build());
+        if (result.getResult() != WriteResult.Result.OK) {
+            throw new IllegalStateException("setup write failed: " + result);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Benchmark
+    public WriteResult modifyFile(Writer writer) {
+        WriteResult result = leader.modifyFile(FileInfo.newBuilder()
+                .setFilename(writer.filename).setVersion(writer.version + 1).addAllBlocklist(blocklist).build());
+        writer.version = result.getCurrentVersion();
+        return result;
+    }
+
+    @Benchmark
+    public FileInfo readFile() {
+        return leader.readFile(FileInfo.newBuilder().setFilename(READ_FILE).build());
+    }
+
+    private void start(String name, BindableService service) throws Exception {
+        servers.add(InProcessServerBuilder.forName(name).addService(service).build().start());
+    }
+
+    private ManagedChannel channel(String name) {
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        channels.add(channel);
+        return channel;
+    }
+
+    @Threads(1)
+    public static class OneThread extends MetadataStoreBenchmark {
+    }
+
+    @Threads(8)
+    public static class EightThreads extends MetadataStoreBenchmark {
+    }
+}
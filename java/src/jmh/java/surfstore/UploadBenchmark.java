@@ -0,0 +1,116 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * Cold upload of one file at different block sizes: hash, modifyFile,
+ * storeBlock for every block, modifyFile again (what Client.upLoad does).
+ * The BlockStore is emptied before each upload so every block is sent.
+ * In-process gRPC skips serialization, so real per-block costs are higher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UploadBenchmark {
+    @Param({"4096", "65536", "1048576", "4194304"})
+    public int blockSize;
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private File file;
+    private Server blockServer;
+    private Server metadataServer;
+    private ManagedChannel blockChannel;
+    private ManagedChannel metadataChannel;
+    private BlockStore.BlockStoreImpl blockStore;
+    private BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    private MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
+    private int version;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("surfstore-upload", ".bin");
+        Files.write(file.toPath(), data);
+
+        String prefix = "upload-bench-" + System.nanoTime() + "-";
+        blockStore = new BlockStore.BlockStoreImpl();
+        blockServer = InProcessServerBuilder.forName(prefix + "block").addService(blockStore).build().start();
+        blockChannel = InProcessChannelBuilder.forName(prefix + "block").build();
+        //a leader without followers commits on its own
+        metadataServer = InProcessServerBuilder.forName(prefix + "leader")
+                .addService(new MetadataStore.MetadataStoreImpl(blockChannel, Collections.<ManagedChannel>emptyList()))
+                .build().start();
+        metadataChannel = InProcessChannelBuilder.forName(prefix + "leader").build();
+        blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+        metadataStub = MetadataStoreGrpc.newBlockingStub(metadataChannel);
+        version = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyBlockStore() {
+        blockStore.blockMap.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        metadataChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        blockChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        metadataServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        blockServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        file.delete();
+    }
+
+    @Benchmark
+    public WriteResult upload() throws IOException {
+        Map<String, byte[]> blocks = new HashMap<>();
+        List<String> hashes = HashUtils.compute_hashlist(file.getPath(), blocks, blockSize);
+        FileInfo.Builder info = FileInfo.newBuilder().setFilename(file.getName())
+                .setVersion(version + 1).setBlockSize(blockSize).addAllBlocklist(hashes);
+        WriteResult result = metadataStub.modifyFile(info.build());
+        for (String hash : result.getMissingBlocksList()) {
+            blockStub.storeBlock(Block.newBuilder().setHash(hash).setData(ByteString.copyFrom(blocks.get(hash))).build());
+        }
+        result = metadataStub.modifyFile(info.build());
+        if (result.getResult() != WriteResult.Result.OK) {
+            throw new IllegalStateException("upload failed: " + result);
+        }
+        version = result.getCurrentVersion();
+        return result;
+    }
+}
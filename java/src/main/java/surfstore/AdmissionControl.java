@@ -0,0 +1,142 @@
+package surfstore;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Per-server budgets for requests and request bytes in flight.
+ *
+ * A call is admitted while the server is under both budgets. Its request
+ * bytes count from admission until the call closes or is cancelled. Calls
+ * that arrive over budget are closed at once with RESOURCE_EXHAUSTED,
+ * before their request message is read. The byte budget is checked before
+ * the message arrives using the "request-bytes" header, which
+ * RetryInterceptor sets to the serialized request size; a call with a
+ * larger hint than the free budget is rejected unless nothing else is in
+ * flight. Calls without the header are only charged once their message has
+ * been received and parsed, so for them the byte budget bounds what
+ * handlers hold, not what the transport has already buffered. The trailers carry a
+ * "retry-after-ms" hint that grows with the overload, which
+ * RetryInterceptor honours on the client.
+ *
+ * Pings, Watch streams and server-to-server replication calls are not
+ * counted. Rejecting them would stall followers rather than shed load.
+ */
+final class AdmissionControl implements ServerInterceptor {
+    static final Metadata.Key<String> RETRY_AFTER_MS = Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+    static final Metadata.Key<String> REQUEST_BYTES = Metadata.Key.of("request-bytes", Metadata.ASCII_STRING_MARSHALLER);
+    private static final long MIN_RETRY_AFTER_MS = 20;
+    private static final long MAX_RETRY_AFTER_MS = 2000;
+    private static final Set<String> EXEMPT = new HashSet<>(Arrays.asList(
+            "Ping", "Watch", "IsLeader", "Crash", "Restore", "IsCrashed", "Log", "LogBatch", "Commit", "Update"));
+
+    private final AtomicLong requests = Metrics.counter("admission.requests_in_flight");
+    private final AtomicLong bytes = Metrics.counter("admission.bytes_in_flight");
+    private final AtomicLong rejected = Metrics.counter("admission.rejected");
+    private final long maxRequests;
+    private final long maxBytes;
+
+    AdmissionControl(long maxRequests, long maxBytes) {
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String fullName = call.getMethodDescriptor().getFullMethodName();
+        String method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        if (EXEMPT.contains(method)) {
+            return next.startCall(call, headers);
+        }
+        long declared = declaredBytes(headers);
+        if (requests.incrementAndGet() > maxRequests || bytes.get() >= maxBytes) {
+            requests.decrementAndGet();
+            reject(call);
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        //charge the declared size now; a lone request larger than the budget still gets through
+        long inFlight = bytes.addAndGet(declared);
+        if (declared > 0 && inFlight > maxBytes && inFlight != declared) {
+            bytes.addAndGet(-declared);
+            requests.decrementAndGet();
+            reject(call);
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+
+        final AtomicLong charged = new AtomicLong(declared);
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    requests.decrementAndGet();
+                    bytes.addAndGet(-charged.get());
+                }
+            }
+        };
+        ServerCall<ReqT, RespT> releasingCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                release.run();
+                super.close(status, trailers);
+            }
+        };
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(
+                next.startCall(releasingCall, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                if (message instanceof MessageLite) {
+                    //settle the declared size against the real one
+                    long size = ((MessageLite) message).getSerializedSize();
+                    bytes.addAndGet(size - charged.getAndSet(size));
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                release.run();
+                super.onCancel();
+            }
+        };
+    }
+
+    //the client's size hint, or 0 if it sent none
+    private static long declaredBytes(Metadata headers) {
+        String hint = headers.get(REQUEST_BYTES);
+        if (hint == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(hint));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void reject(ServerCall<?, ?> call) {
+        rejected.incrementAndGet();
+        double load = Math.max((double) requests.get() / maxRequests, (double) bytes.get() / maxBytes);
+        long retryAfter = Math.min(MAX_RETRY_AFTER_MS, (long) (MIN_RETRY_AFTER_MS * Math.max(1, load * load)));
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_MS, Long.toString(retryAfter));
+        call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server busy: " + requests.get() + " requests, "
+                + bytes.get() + " bytes in flight"), trailers);
+    }
+}
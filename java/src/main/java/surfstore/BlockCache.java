@@ -0,0 +1,192 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-budgeted cache of blocks held off-heap, with W-TinyLFU admission.
+ *
+ * New blocks enter a small LRU window (1% of the budget). A block pushed
+ * out of the window only joins the main area, a segmented LRU of probation
+ * and protected (80%) parts, if it has been read more often than the main
+ * area's eviction victim, as estimated by a count-min sketch with periodic
+ * aging. A long scan of cold blocks therefore cycles through the window
+ * without evicting the hot set.
+ *
+ * Block data lives in direct buffers outside the Java heap. Readers get a
+ * read-only view, which stays valid after the block is evicted.
+ */
+final class BlockCache {
+    private final AtomicLong hits = Metrics.counter("blockcache.hits");
+    private final AtomicLong misses = Metrics.counter("blockcache.misses");
+    private final AtomicLong evictions = Metrics.counter("blockcache.evictions");
+    private final AtomicLong rejections = Metrics.counter("blockcache.rejections");
+    private final AtomicLong usedBytes = Metrics.counter("blockcache.bytes");
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final FrequencySketch sketch;
+
+    //insertion order is LRU order; a hit moves the entry to the tail
+    private final LinkedHashMap<String, ByteBuffer> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, ByteBuffer> protectedArea = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    //expectedBlockSize sizes the frequency sketch for maxBytes / expectedBlockSize blocks
+    BlockCache(long maxBytes, int expectedBlockSize) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch(Math.max(16, maxBytes / Math.max(1, expectedBlockSize)));
+    }
+
+    //read-only view of the block, or null
+    synchronized ByteBuffer get(String hash) {
+        sketch.increment(hash);
+        ByteBuffer data = window.remove(hash);
+        if (data != null) {
+            window.put(hash, data);
+        } else if ((data = protectedArea.remove(hash)) != null) {
+            protectedArea.put(hash, data);
+        } else if ((data = probation.remove(hash)) != null) {
+            probationBytes -= data.capacity();
+            promote(hash, data);
+        }
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return data.asReadOnlyBuffer();
+    }
+
+    //add a block just read from the cold tier; the access was counted by the get() that missed
+    synchronized void put(String hash, byte[] block) {
+        if (block.length > maxBytes - windowMax || window.containsKey(hash)
+                || probation.containsKey(hash) || protectedArea.containsKey(hash)) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(block.length);
+        data.put(block).flip();
+        window.put(hash, data);
+        windowBytes += block.length;
+        usedBytes.addAndGet(block.length);
+        while (windowBytes > windowMax) {
+            Map.Entry<String, ByteBuffer> candidate = removeEldest(window);
+            windowBytes -= candidate.getValue().capacity();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    //probation hit: move to protected, demoting protected's LRU entries if it is full
+    private void promote(String hash, ByteBuffer data) {
+        protectedArea.put(hash, data);
+        protectedBytes += data.capacity();
+        while (protectedBytes > protectedMax) {
+            Map.Entry<String, ByteBuffer> demoted = removeEldest(protectedArea);
+            protectedBytes -= demoted.getValue().capacity();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().capacity();
+        }
+    }
+
+    //window eviction: the candidate replaces main's victims only while it is more frequent than each of them
+    private void admit(String hash, ByteBuffer data) {
+        long mainMax = maxBytes - windowMax;
+        int frequency = sketch.frequency(hash);
+        while (probationBytes + protectedBytes + data.capacity() > mainMax) {
+            LinkedHashMap<String, ByteBuffer> victims = probation.isEmpty() ? protectedArea : probation;
+            String victim = victims.keySet().iterator().next();
+            if (frequency <= sketch.frequency(victim)) {
+                rejections.incrementAndGet();
+                usedBytes.addAndGet(-data.capacity());
+                return;
+            }
+            ByteBuffer evicted = victims.remove(victim);
+            if (victims == probation) {
+                probationBytes -= evicted.capacity();
+            } else {
+                protectedBytes -= evicted.capacity();
+            }
+            evictions.incrementAndGet();
+            usedBytes.addAndGet(-evicted.capacity());
+        }
+        probation.put(hash, data);
+        probationBytes += data.capacity();
+    }
+
+    private static Map.Entry<String, ByteBuffer> removeEldest(LinkedHashMap<String, ByteBuffer> map) {
+        Iterator<Map.Entry<String, ByteBuffer>> it = map.entrySet().iterator();
+        Map.Entry<String, ByteBuffer> eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+    synchronized long size() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    /**
+     * Count-min sketch of 4 rows of counters saturating at 15. After
+     * 10 * width increments every counter is halved, so old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0x5ef1b93d, 0x2c0a3b5f, 0x7b1c5a29};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.min(1 << 24, Math.max(16, expectedEntries)) * 2 - 1);
+            rows = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int index(String key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(String key) {
+            boolean added = false;
+            for (int row = 0; row < rows.length; row++) {
+                int i = index(key, row);
+                if (rows[row][i] < MAX_COUNT) {
+                    rows[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < rows.length; row++) {
+                min = Math.min(min, rows[row][index(key, row)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package surfstore;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import surfstore.SurfStoreBasic.BlockEdit;
+
+/**
+ * Immutable blocklist stored as chunks of up to CHUNK hashes.
+ *
+ * splice() returns a new BlockList that shares every chunk outside the
+ * edited range with this one, so successive versions of a large file cost
+ * memory in proportion to what changed. The same edits travel in FileInfo
+ * as BlockEdits (see diff() and apply()).
+ */
+final class BlockList extends AbstractList<String> implements RandomAccess {
+    static final int CHUNK = 1024;
+    //more edits than this are sent as a full blocklist instead
+    static final int MAX_EDITS = 1024;
+
+    private static final BlockList EMPTY = new BlockList(new String[0][], new int[]{0});
+
+    private final String[][] chunks;
+    //starts[k] is the index of the first hash in chunks[k]; starts[chunks.length] is the size
+    private final int[] starts;
+
+    private BlockList(String[][] chunks, int[] starts) {
+        this.chunks = chunks;
+        this.starts = starts;
+    }
+
+    static BlockList of(List<String> hashes) {
+        if (hashes instanceof BlockList)
+            return (BlockList) hashes;
+        if (hashes == null || hashes.isEmpty())
+            return EMPTY;
+        return EMPTY.splice(0, 0, hashes);
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        int k = chunkOf(index);
+        return chunks[k][index - starts[k]];
+    }
+
+    @Override
+    public int size() {
+        return starts[chunks.length];
+    }
+
+    //chunk holding index, for 0 <= index < size()
+    private int chunkOf(int index) {
+        int k = Arrays.binarySearch(starts, 0, chunks.length, index);
+        return k >= 0 ? k : -k - 2;
+    }
+
+    /**
+     * Replace delete hashes starting at index with hashes. Only the chunks
+     * that overlap the replaced range are rebuilt.
+     */
+    BlockList splice(int index, int delete, List<String> hashes) {
+        int size = size();
+        if (index < 0 || delete < 0 || index > size || delete > size - index)
+            throw new IndexOutOfBoundsException("Edit at " + index + " deleting " + delete + ", size " + size);
+        //chunks [first, last] are rebuilt; appends reopen the last chunk so it fills up
+        int first = index < size ? chunkOf(index) : chunks.length - 1;
+        int last = delete > 0 ? chunkOf(index + delete - 1) : first;
+        if (first < 0) {
+            first = 0;
+            last = -1;
+        }
+
+        List<String> region = new ArrayList<>();
+        if (first <= last) {
+            region.addAll(Arrays.asList(chunks[first]).subList(0, index - starts[first]));
+        }
+        region.addAll(hashes);
+        if (first <= last) {
+            String[] tail = chunks[last];
+            region.addAll(Arrays.asList(tail).subList(index + delete - starts[last], tail.length));
+        }
+
+        int rebuilt = (region.size() + CHUNK - 1) / CHUNK;
+        int kept = chunks.length - (last - first + 1);
+        String[][] newChunks = new String[kept + rebuilt][];
+        System.arraycopy(chunks, 0, newChunks, 0, first);
+        for (int i = 0; i < rebuilt; i++) {
+            List<String> piece = region.subList(i * CHUNK, Math.min(region.size(), (i + 1) * CHUNK));
+            newChunks[first + i] = piece.toArray(new String[piece.size()]);
+        }
+        System.arraycopy(chunks, last + 1, newChunks, first + rebuilt, chunks.length - last - 1);
+
+        int[] newStarts = new int[newChunks.length + 1];
+        for (int k = 0; k < newChunks.length; k++) {
+            newStarts[k + 1] = newStarts[k] + newChunks[k].length;
+        }
+        return new BlockList(newChunks, newStarts);
+    }
+
+    //edits are applied in order, each to the result of the previous one
+    BlockList apply(List<BlockEdit> edits) {
+        BlockList res = this;
+        for (BlockEdit edit : edits) {
+            res = res.splice(edit.getIndex(), edit.getDelete(), edit.getHashesList());
+        }
+        return res;
+    }
+
+    /**
+     * Edits that turn base into target, comparing position by position as
+     * fixed-size blocks line up. Ranges where both lists share a chunk are
+     * skipped without comparing hashes.
+     */
+    static List<BlockEdit> diff(List<String> base, List<String> target) {
+        List<BlockEdit> edits = new ArrayList<>();
+        int n = Math.min(base.size(), target.size());
+        int i = 0;
+        while (i < n) {
+            int shared = sharedRun(base, target, i);
+            if (shared > 0) {
+                i += Math.min(shared, n - i);
+                continue;
+            }
+            if (base.get(i).equals(target.get(i))) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < n && !base.get(j).equals(target.get(j))) {
+                j++;
+            }
+            edits.add(edit(i, j - i, target.subList(i, j)));
+            i = j;
+        }
+        if (base.size() != target.size()) {
+            edits.add(edit(n, base.size() - n, target.subList(n, target.size())));
+        }
+        return edits;
+    }
+
+    //number of positions from i on that both lists take from the same chunk
+    private static int sharedRun(List<String> base, List<String> target, int i) {
+        if (!(base instanceof BlockList) || !(target instanceof BlockList))
+            return 0;
+        BlockList a = (BlockList) base;
+        BlockList b = (BlockList) target;
+        int ka = a.chunkOf(i);
+        int kb = b.chunkOf(i);
+        if (a.chunks[ka] != b.chunks[kb] || a.starts[ka] != b.starts[kb])
+            return 0;
+        return a.starts[ka + 1] - i;
+    }
+
+    private static BlockEdit edit(int index, int delete, List<String> hashes) {
+        return BlockEdit.newBuilder().setIndex(index).setDelete(delete).addAllHashes(hashes).build();
+    }
+
+    //whether sending edits beats sending the whole target blocklist
+    static boolean worthSending(List<BlockEdit> edits, int targetSize) {
+        if (edits.size() > MAX_EDITS)
+            return false;
+        long hashes = 0;
+        for (BlockEdit edit : edits) {
+            hashes += edit.getHashesCount();
+        }
+        return hashes < targetSize / 2;
+    }
+}
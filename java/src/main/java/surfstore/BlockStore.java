@@ -2,14 +2,17 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import com.google.protobuf.ByteString;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -21,21 +24,31 @@ import surfstore.SurfStoreBasic.Block.Builder;
 
 public final class BlockStore {
     private static final Logger logger = Logger.getLogger(BlockStore.class.getName());
+    //threads for block file reads and fsyncs, kept off the gRPC handler threads
+    static final int DISK_THREADS = 16;
 
     protected Server server;
 	protected ConfigReader config;
+	protected ServerOptions options;
+    private ExecutorService diskExecutor;
 
     public BlockStore(ConfigReader config) {
     	this.config = config;
 	}
 
-	private void start(int port, int numThreads) throws IOException {
-        server = ServerBuilder.forPort(port)
-                .addService(new BlockStoreImpl())
-                .executor(Executors.newFixedThreadPool(numThreads))
-                .build()
-                .start();
-        logger.info("Server started, listening on " + port);
+	private void start(int port, ServerOptions options, String dataDir, long cacheBytes) throws IOException {
+        this.options = options;
+        BlockStoreImpl impl;
+        if (dataDir == null) {
+            impl = new BlockStoreImpl();
+        } else {
+            diskExecutor = Executors.newFixedThreadPool(DISK_THREADS);
+            impl = new BlockStoreImpl(new DiskBlocks(new File(dataDir)), new BlockCache(cacheBytes, config.getBlockSize()),
+                    diskExecutor);
+        }
+        server = options.start(port, impl);
+        logger.info("Server started, listening on " + port
+                + (dataDir == null ? "" : " (blocks in " + dataDir + ", " + (cacheBytes >> 20) + " MB cache)"));
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -50,6 +63,12 @@ public final class BlockStore {
         if (server != null) {
             server.shutdown();
         }
+        if (options != null) {
+            options.shutdown();
+        }
+        if (diskExecutor != null) {
+            diskExecutor.shutdown();
+        }
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -63,8 +82,11 @@ public final class BlockStore {
                 .description("BlockStore server for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
-        parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
-                .help("Maximum number of concurrent threads");
+        ServerOptions.addArguments(parser);
+        parser.addArgument("--data-dir").type(String.class)
+                .help("Keep blocks on disk in this directory instead of all in memory");
+        parser.addArgument("--cache-mb").type(Integer.class).setDefault(256)
+                .help("Off-heap cache for hot blocks in front of --data-dir, in MB");
 
         Namespace res = null;
         try {
@@ -85,16 +107,37 @@ public final class BlockStore {
         ConfigReader config = new ConfigReader(configf);
 
         final BlockStore server = new BlockStore(config);
-        server.start(config.getBlockPort(), c_args.getInt("threads"));
+        server.start(config.getBlockPort(), new ServerOptions(c_args), c_args.getString("data_dir"),
+                (long) c_args.getInt("cache_mb") << 20);
         server.blockUntilShutdown();
     }
 
+    /**
+     * Blocks are kept in blockMap, or with a data directory in two tiers:
+     * DiskBlocks holds every block and BlockCache the frequently read ones.
+     * Disk reads and writes run on diskExecutor and answer from there, so
+     * the handler thread (the event loop with --executor direct) never waits
+     * on the disk; cache hits are answered on the handler thread.
+     */
     static class BlockStoreImpl extends BlockStoreGrpc.BlockStoreImplBase {
         protected Map<String, byte[]> blockMap;
+        protected final DiskBlocks disk;
+        protected final BlockCache cache;
+        protected final Executor diskExecutor;
 
         public BlockStoreImpl() {
             super();
-            this.blockMap = new HashMap<>();
+            this.blockMap = new ConcurrentHashMap<>();
+            this.disk = null;
+            this.cache = null;
+            this.diskExecutor = null;
+        }
+
+        public BlockStoreImpl(DiskBlocks disk, BlockCache cache, Executor diskExecutor) {
+            super();
+            this.disk = disk;
+            this.cache = cache;
+            this.diskExecutor = diskExecutor;
         }
 
         @Override
@@ -105,24 +148,73 @@ public final class BlockStore {
         }
 
         @Override
-        public void storeBlock(surfstore.SurfStoreBasic.Block request,
-                               io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
+        public void storeBlock(final surfstore.SurfStoreBasic.Block request,
+                               final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
 
-            blockMap.put(request.getHash(), request.getData().toByteArray());
+            if (disk == null) {
+                blockMap.put(request.getHash(), request.getData().toByteArray());
+                respondEmpty(responseObserver);
+                return;
+            }
+            diskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        disk.put(request.getHash(), request.getData().toByteArray());
+                    } catch (IllegalArgumentException e) {
+                        responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                        return;
+                    } catch (IOException e) {
+                        responseObserver.onError(Status.INTERNAL.withDescription(e.toString()).asRuntimeException());
+                        return;
+                    }
+                    respondEmpty(responseObserver);
+                }
+            });
+        }
 
+        private static void respondEmpty(StreamObserver<Empty> responseObserver) {
             Empty response = Empty.newBuilder().build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
         @Override
-        public void getBlock(surfstore.SurfStoreBasic.Block request,
-                             io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Block> responseObserver) {
+        public void getBlock(final surfstore.SurfStoreBasic.Block request,
+                             final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Block> responseObserver) {
 
-            byte[] data = blockMap.get(request.getHash());
+            if (disk == null) {
+                respondBlock(request.getHash(), ByteString.copyFrom(blockMap.get(request.getHash())), responseObserver);
+                return;
+            }
+            ByteBuffer cached = cache.get(request.getHash());
+            if (cached != null) {
+                respondBlock(request.getHash(), ByteString.copyFrom(cached), responseObserver);
+                return;
+            }
+            diskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ByteString data;
+                    try {
+                        data = readDisk(request.getHash());
+                    } catch (IOException e) {
+                        responseObserver.onError(Status.INTERNAL.withDescription(e.toString()).asRuntimeException());
+                        return;
+                    }
+                    if (data == null) {
+                        responseObserver.onError(Status.NOT_FOUND.withDescription(request.getHash()).asRuntimeException());
+                        return;
+                    }
+                    respondBlock(request.getHash(), data, responseObserver);
+                }
+            });
+        }
+
+        private static void respondBlock(String hash, ByteString data, StreamObserver<Block> responseObserver) {
             Builder builder = Block.newBuilder();
-            builder.setData(ByteString.copyFrom(data));
-            builder.setHash(request.getHash());
+            builder.setData(data);
+            builder.setHash(hash);
 
             Block response = builder.build();
             responseObserver.onNext(response);
@@ -133,11 +225,21 @@ public final class BlockStore {
         public void hasBlock(surfstore.SurfStoreBasic.Block request,
                              io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.SimpleAnswer> responseObserver) {
 
-            boolean answer = blockMap.containsKey(request.getHash());
+            boolean answer = disk == null ? blockMap.containsKey(request.getHash()) : disk.has(request.getHash());
 
             SimpleAnswer response = SimpleAnswer.newBuilder().setAnswer(answer).build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+
+        //a block the cache missed; the disk read is offered to the cache, which may not admit it
+        private ByteString readDisk(String hash) throws IOException {
+            byte[] data = disk.get(hash);
+            if (data == null) {
+                return null;
+            }
+            cache.put(hash, data);
+            return ByteString.copyFrom(data);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WatchEvent;
+import surfstore.SurfStoreBasic.WatchRequest;
+
+/**
+ * Recent committed changes plus the Watch subscribers reading them.
+ *
+ * Every committed FileInfo becomes a WatchEvent whose index is its position
+ * in the history, starting at 1, and which carries the store id. Indexes
+ * only mean something within one store id, since the feed lives in memory
+ * and starts over when the server does.
+ *
+ * Only the last COALESCE_THRESHOLD events are kept in order, in a ring.
+ * Besides that, the latest event of every existing file is kept, ordered
+ * by index, as is the deletion of a file until it leaves the ring. Watchers
+ * only send while their call is ready (gRPC flow control), so a slow
+ * watcher leaves its backlog in the shared feed instead of a private
+ * buffer. A backlog longer than COALESCE_THRESHOLD is sent as the latest
+ * event per file, read from the ordered map in O(backlog) without holding
+ * the feed's lock, so a watcher starting from 0 does not hold up commits.
+ *
+ * A watcher is sent a resync event, followed by the latest event of every
+ * file, when its from_index cannot be trusted: it came from another store
+ * id, or a deletion it has not been sent has been dropped.
+ */
+final class ChangeFeed {
+    static final int COALESCE_THRESHOLD = 256;
+
+    private final long storeId;
+    //event with index i is in slot (i - 1) % COALESCE_THRESHOLD
+    private final WatchEvent[] recent = new WatchEvent[COALESCE_THRESHOLD];
+    //latest event per file by index, and its index by file name
+    private final ConcurrentNavigableMap<Long, WatchEvent> latest = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> latestIndex = new HashMap<>();
+    private final Set<Watcher> watchers = new CopyOnWriteArraySet<>();
+    //index of the last published event
+    private volatile long lastIndex;
+    //index of the last deletion dropped from latest
+    private volatile long droppedDeletion;
+
+    ChangeFeed(long storeId) {
+        this.storeId = storeId;
+    }
+
+    //record a committed entry; call notifyWatchers() once the caller drops its locks
+    synchronized void publish(FileInfo fi) {
+        boolean deleted = fi.getBlocklistCount() == 1 && fi.getBlocklist(0).equals("0");
+        WatchEvent event = WatchEvent.newBuilder()
+                .setIndex(lastIndex + 1)
+                .setFilename(fi.getFilename())
+                .setVersion(fi.getVersion())
+                .setDeleted(deleted)
+                .setStoreId(storeId)
+                .build();
+        int slot = (int) (lastIndex % COALESCE_THRESHOLD);
+        WatchEvent evicted = recent[slot];
+        recent[slot] = event;
+        //a deletion is forgotten once it leaves the ring, unless the file came back since
+        if (evicted != null && evicted.getDeleted()
+                && Long.valueOf(evicted.getIndex()).equals(latestIndex.get(evicted.getFilename()))) {
+            latestIndex.remove(evicted.getFilename());
+            latest.remove(evicted.getIndex());
+            droppedDeletion = evicted.getIndex();
+        }
+        Long previous = latestIndex.put(fi.getFilename(), event.getIndex());
+        latest.put(event.getIndex(), event);
+        if (previous != null) {
+            latest.remove(previous);
+        }
+        lastIndex = event.getIndex();
+    }
+
+    void notifyWatchers() {
+        for (Watcher watcher : watchers) {
+            try {
+                watcher.drain();
+            } catch (RuntimeException e) {
+                //the call went away between the isCancelled check and onNext
+                watchers.remove(watcher);
+            }
+        }
+    }
+
+    void subscribe(WatchRequest request, StreamObserver<WatchEvent> responseObserver) {
+        final Watcher watcher = new Watcher((ServerCallStreamObserver<WatchEvent>) responseObserver);
+        if (request.getStoreId() != 0 && request.getStoreId() != storeId) {
+            //the index was numbered by an earlier incarnation
+            watcher.resync = true;
+        } else if (request.getFromIndex() == 0) {
+            //nothing to reset on a fresh start, but deletions dropped from now on count
+            watcher.nextIndex = 1;
+            watcher.droppedBefore = droppedDeletion;
+        } else {
+            watcher.nextIndex = request.getFromIndex() + 1;
+        }
+        watcher.observer.setOnCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                watchers.remove(watcher);
+            }
+        });
+        watcher.observer.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                watcher.drain();
+            }
+        });
+        watchers.add(watcher);
+        watcher.drain();
+    }
+
+    //events with index >= fromIndex, or null if there are more than COALESCE_THRESHOLD
+    private synchronized List<WatchEvent> eventsFrom(long fromIndex) {
+        long from = Math.max(1, fromIndex);
+        if (lastIndex - from + 1 > COALESCE_THRESHOLD) {
+            return null;
+        }
+        List<WatchEvent> res = new ArrayList<>();
+        for (long i = from; i <= lastIndex; i++) {
+            res.add(recent[(int) ((i - 1) % COALESCE_THRESHOLD)]);
+        }
+        return res;
+    }
+
+    /**
+     * Latest event per file among indexes fromIndex..upTo, in increasing
+     * index order, so resuming from any sent index is still safe. A file
+     * committed again after upTo is left out; its newer event comes after.
+     */
+    private List<WatchEvent> coalescedFrom(long fromIndex, long upTo) {
+        if (fromIndex > upTo) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(latest.subMap(fromIndex, true, upTo, true).values());
+    }
+
+    private final class Watcher {
+        final ServerCallStreamObserver<WatchEvent> observer;
+        //index of the next event this watcher has not been sent
+        long nextIndex;
+        //a resync event is due before anything else
+        boolean resync;
+        //droppedDeletion as of the last resync; later drops past nextIndex force another
+        long droppedBefore;
+
+        Watcher(ServerCallStreamObserver<WatchEvent> observer) {
+            this.observer = observer;
+        }
+
+        synchronized void drain() {
+            while (true) {
+                if (observer.isCancelled() || !observer.isReady()) {
+                    return;
+                }
+                long dropped = droppedDeletion;
+                if (resync || (dropped >= nextIndex && dropped > droppedBefore)) {
+                    //the client starts over from the latest event of every file
+                    observer.onNext(WatchEvent.newBuilder().setResync(true).setStoreId(storeId).build());
+                    resync = false;
+                    droppedBefore = dropped;
+                    nextIndex = 1;
+                }
+                List<WatchEvent> backlog = eventsFrom(nextIndex);
+                long upTo = -1;
+                if (backlog == null) {
+                    upTo = lastIndex;
+                    backlog = coalescedFrom(nextIndex, upTo);
+                }
+                for (WatchEvent event : backlog) {
+                    if (!observer.isReady()) {
+                        //the on-ready handler resumes from here
+                        return;
+                    }
+                    observer.onNext(event);
+                    nextIndex = event.getIndex() + 1;
+                }
+                if (upTo < nextIndex) {
+                    return;
+                }
+                //the snapshot accounts for every change up to upTo, so skip what it left out
+                nextIndex = upTo + 1;
+            }
+        }
+    }
+}
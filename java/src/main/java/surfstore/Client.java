@@ -3,18 +3,34 @@ package surfstore;
 import java.io.*;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.List;
 import java.util.ArrayList;
 
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -23,39 +39,104 @@ import surfstore.SurfStoreBasic.*;
 
 public final class Client {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
+    //files and block hashes per ModifyFiles call in sync
+    private static final int SYNC_BATCH = 1000;
+    private static final int SYNC_BATCH_HASHES = 100000;
+    private static final int STORE_WINDOW = 64;
+    //file data sent inline with metadata writes, which StoreBlock metrics do not see
+    private static final AtomicLong inlineBytes = Metrics.counter("client.inline_bytes");
 
-    private final ManagedChannel metadataChannel;
-    private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
+    //one channel per replication group, to its leader; files are routed by ConfigReader.getGroupForFile
+    private final List<ManagedChannel> metadataChannels;
+    private final List<MetadataStoreGrpc.MetadataStoreBlockingStub> metadataStubs;
 
     private final ManagedChannel blockChannel;
     private final BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    private final BlockStoreGrpc.BlockStoreFutureStub asyncBlockStub;
 
     private final ConfigReader config;
+    //blocks by hash, in least recently used order; bounded by trimBlocks() between daemon commands
     private Map<String, byte[]> hash_to_data;
+    private final MetadataCache metadataCache;
+    private final HashIndex hashIndex;
+    //block size for new uploads; downloads use whatever the file was written with
+    private final int blockSize;
+    //files up to this size go inline with the metadata write; 0 once a server refused inline data
+    private volatile int inlineSize;
 
     public Client(ConfigReader config) {
-        this.metadataChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(1))
-                .usePlaintext(true).build();
-        this.metadataStub = MetadataStoreGrpc.newBlockingStub(metadataChannel);
+        this(config, config.getBlockSize());
+    }
+
+    public Client(ConfigReader config, int blockSize) {
+        this(config, blockSize, defaultCacheDir());
+    }
+
+    /**
+     * @param cacheDir directory for the metadata cache and hash index, or null to keep them in memory
+     */
+    public Client(ConfigReader config, int blockSize, File cacheDir) {
+        HashUtils.checkBlockSize(blockSize);
+        this.metadataChannels = new ArrayList<>();
+        this.metadataStubs = new ArrayList<>();
+        for (int group = 1; group <= config.getNumGroups(); group++) {
+            ManagedChannel channel = ManagedChannelBuilder
+                    .forAddress("127.0.0.1", config.getMetadataPort(config.getGroupLeader(group)))
+                    .usePlaintext(true).maxInboundMessageSize(ServerOptions.MAX_MESSAGE_SIZE)
+                    .intercept(MetricsInterceptor.INSTANCE, RetryInterceptor.INSTANCE).build();
+            metadataChannels.add(channel);
+            metadataStubs.add(MetadataStoreGrpc.newBlockingStub(channel));
+        }
 
         this.blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort())
-                .usePlaintext(true).build();
+                .usePlaintext(true).maxInboundMessageSize(ServerOptions.MAX_MESSAGE_SIZE)
+                .intercept(MetricsInterceptor.INSTANCE, RetryInterceptor.INSTANCE).build();
         this.blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+        this.asyncBlockStub = BlockStoreGrpc.newFutureStub(blockChannel);
 
         this.config = config;
+        this.blockSize = blockSize;
+        this.inlineSize = config.getInlineSize();
+
+        this.hash_to_data = new LinkedHashMap<>(16, 0.75f, true);
+        //one cache per cluster, named after the leader's port
+        this.metadataCache = new MetadataCache(cacheDir == null ? null
+                : new File(cacheDir, "metadata-" + config.getMetadataPort(config.getGroupLeader(1)) + ".cache"));
+        this.hashIndex = new HashIndex(cacheDir == null ? null : new File(cacheDir, "hashindex"));
+    }
 
-        this.hash_to_data = new HashMap<>();
+    static File defaultCacheDir() {
+        return new File(System.getProperty("user.home"), ".surfstore");
     }
 
     public void shutdown() throws InterruptedException {
-        metadataChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        try {
+            saveCaches();
+        } catch (IOException e) {
+            logger.warning("Failed to save the client caches: " + e);
+        }
+        for (ManagedChannel channel : metadataChannels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
         blockChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
 
+    //leader of the group that owns the file
+    private MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub(String fileName) {
+        return metadataStubs.get(config.getGroupForFile(fileName) - 1);
+    }
+
+    //ReadFile that only transfers the blocklist when the cached copy is stale
+    private FileInfo readFile(String fileName) {
+        FileInfo res = metadataCache.resolve(metadataStub(fileName).readFile(metadataCache.request(fileName)));
+        if (res == null) {
+            res = metadataCache.resolve(metadataStub(fileName).readFile(FileInfo.newBuilder().setFilename(fileName).build()));
+        }
+        return res;
+    }
+
     public void download(String fileName, String downPath) throws NoSuchFileException{
-        FileInfo.Builder fileinfo_builder=FileInfo.newBuilder();
-        fileinfo_builder.setFilename(fileName);
-        FileInfo readfile_res=metadataStub.readFile(fileinfo_builder.build());
+        FileInfo readfile_res=readFile(fileName);
         if(readfile_res.getVersion() == 0||
                 (readfile_res.getBlocklistCount() == 1&&readfile_res.getBlocklist(0).equals("0"))){
             throw new NoSuchFileException(fileName);
@@ -86,89 +167,474 @@ public final class Client {
                 os.write(hash_to_data.get(s));
             }
             os.close();
+            //a later upload of this file can skip hashing it
+            hashIndex.record(f.toPath(), HashUtils.blockSizeOf(readfile_res.getBlockSize()), all_hashes, hash_to_data);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     public void upLoad(String path) throws IOException{
-        List<String> hash_list=HashUtils.compute_hashlist(path, hash_to_data);
+        List<String> hash_list=hashIndex.hashlist(Paths.get(path), blockSize, hash_to_data);
         FileInfo.Builder fileinfo_builder=FileInfo.newBuilder();
         fileinfo_builder.setFilename(Paths.get(path).getFileName().toString());
-        FileInfo readfile_res=metadataStub.readFile(fileinfo_builder.build());
+        fileinfo_builder.setBlockSize(blockSize);
+        FileInfo readfile_res;
+        byte[] inline = inlineData(path, hash_list, hash_to_data);
+        if(inline != null){
+            //small file: guess the version from the cache and send the data along,
+            //so the write is one round trip unless another client changed the file
+            readfile_res = metadataCache.get(fileinfo_builder.getFilename());
+            if(readfile_res == null)
+                readfile_res = FileInfo.getDefaultInstance();
+            fileinfo_builder.setInlineData(ByteString.copyFrom(inline));
+        } else {
+            readfile_res = readFile(fileinfo_builder.getFilename());
+        }
         fileinfo_builder.setVersion(readfile_res.getVersion()+1);
-        fileinfo_builder.addAllBlocklist(hash_list);
-        WriteResult modify_res=metadataStub.modifyFile(fileinfo_builder.build());
+        //large file with few changed blocks: send edits against the current version
+        List<BlockEdit> edits = null;
+        if(readfile_res.getVersion() > 0 && hash_list.size() >= BlockList.CHUNK
+                && HashUtils.blockSizeOf(readfile_res.getBlockSize()) == blockSize){
+            edits = BlockList.diff(readfile_res.getBlocklistList(), hash_list);
+        }
+        if(edits != null && BlockList.worthSending(edits, hash_list.size())){
+            fileinfo_builder.setBaseVersion(readfile_res.getVersion()).addAllEdits(edits);
+        } else {
+            fileinfo_builder.addAllBlocklist(hash_list);
+        }
+        WriteResult modify_res;
+        try {
+            modify_res=modifyFile(fileinfo_builder);
+        } catch (StatusRuntimeException e) {
+            if(!refusedInline(e, Collections.singletonList(fileinfo_builder)))
+                throw e;
+            //upload the block the usual way, against the real current version
+            readfile_res = readFile(fileinfo_builder.getFilename());
+            fileinfo_builder.setVersion(readfile_res.getVersion()+1);
+            modify_res=modifyFile(fileinfo_builder);
+        }
+        //block index by hash, built the first time blocks have to be read back from the file
+        Map<String, Integer> positions = null;
 
         while (modify_res.getResultValue() != 0){
             if(modify_res.getResultValue() == 1){
                 fileinfo_builder.setVersion(modify_res.getCurrentVersion()+1);
+                //the base moved on, fall back to the full blocklist
+                if(fileinfo_builder.getBaseVersion() != 0)
+                    fileinfo_builder.clearBaseVersion().clearEdits().addAllBlocklist(hash_list);
             } else if(modify_res.getResultValue()==2){
                 List<String> missing_blocks=modify_res.getMissingBlocksList();
+                if(positions == null){
+                    positions = new HashMap<>();
+                    for(int i=hash_list.size()-1;i>=0;i--){
+                        positions.put(hash_list.get(i), i);
+                    }
+                }
                 for(int i=0;i<missing_blocks.size();i++){
                     Block.Builder block_builder=Block.newBuilder();
                     block_builder.setHash(missing_blocks.get(i)); //get missing block hashlist
-                    block_builder.setData(ByteString.copyFrom(hash_to_data.get(missing_blocks.get(i)))); //get missing block data
+                    block_builder.setData(ByteString.copyFrom(blockData(path, positions, missing_blocks.get(i)))); //get missing block data
                     blockStub.storeBlock(block_builder.build());
                 }
                 fileinfo_builder.setVersion(modify_res.getCurrentVersion()+1);
             }
-            modify_res=metadataStub.modifyFile(fileinfo_builder.build());
+            modify_res=modifyFile(fileinfo_builder);
+        }
+        fileinfo_builder.clearBaseVersion().clearEdits().clearBlocklist().addAllBlocklist(hash_list);
+        cacheWrite(fileinfo_builder, modify_res, readfile_res.getStoreId());
+    }
+
+    /**
+     * Whether e is the server refusing inline data in writes, typically
+     * because its inline limit is below ours. If so, the inline data is
+     * dropped from writes, so the blocks go through StoreBlock instead, and
+     * this client stops sending inline data.
+     */
+    private boolean refusedInline(StatusRuntimeException e, List<FileInfo.Builder> writes) {
+        if (e.getStatus().getCode() != Status.Code.INVALID_ARGUMENT)
+            return false;
+        boolean inline = false;
+        for (FileInfo.Builder write : writes) {
+            if (!write.getInlineData().isEmpty()) {
+                write.clearInlineData();
+                inline = true;
+            }
+        }
+        if (inline) {
+            logger.warning("Server refused inline data, uploading blocks instead: " + e.getStatus().getDescription());
+            inlineSize = 0;
+        }
+        return inline;
+    }
+
+    private WriteResult modifyFile(FileInfo.Builder write) {
+        inlineBytes.addAndGet(write.getInlineData().size());
+        return metadataStub(write.getFilename()).modifyFile(write.build());
+    }
+
+    //data of a block of the file being uploaded; blocks the index did not re-hash are read from the file again
+    private byte[] blockData(String path, Map<String, Integer> positions, String hash) throws IOException {
+        byte[] data = hash_to_data.get(hash);
+        if (data == null) {
+            data = readBlockAt(path, positions.get(hash), hash);
+            hash_to_data.put(hash, data);
         }
+        return data;
+    }
+
+    //data to send inline with the write, or null if the file is not small enough
+    private byte[] inlineData(String path, List<String> hash_list, Map<String, byte[]> blocks) throws IOException {
+        if (inlineSize <= 0 || hash_list.size() > 1 || new File(path).length() > inlineSize)
+            return null;
+        if (hash_list.isEmpty())
+            return new byte[0];
+        byte[] data = blocks == null ? null : blocks.get(hash_list.get(0));
+        return data != null ? data : readBlockAt(path, 0, hash_list.get(0));
+    }
 
+    //block number index of the file, which must still hash to hash
+    private byte[] readBlockAt(String path, int index, String hash) throws IOException {
+        long offset = (long) index * blockSize;
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            data = new byte[(int) Math.max(0, Math.min(blockSize, raf.length() - offset))];
+            raf.seek(offset);
+            raf.readFully(data);
+        }
+        if (!HashUtils.sha256(data).equals(hash)) {
+            throw new IOException(path + " changed during upload");
+        }
+        return data;
+    }
+
+    /**
+     * Upload every regular file directly under dir that differs from the
+     * server, SYNC_BATCH files of one replication group at a time. Each batch
+     * costs one ReadFiles, one ModifyFiles per retry and one replication
+     * round, instead of a round trip per call per file.
+     * @param dir
+     * @return number of files uploaded
+     */
+    public int sync(String dir) throws IOException {
+        File[] listed = new File(dir).listFiles();
+        if (listed == null)
+            throw new NoSuchFileException(dir);
+        int groups = metadataStubs.size();
+        List<List<File>> batches = new ArrayList<>();
+        long[] batchHashes = new long[groups];
+        for (int g = 0; g < groups; g++) {
+            batches.add(new ArrayList<File>());
+        }
+        int uploaded = 0;
+        for (File f : listed) {
+            if (!f.isFile())
+                continue;
+            int g = config.getGroupForFile(f.getName()) - 1;
+            List<File> batch = batches.get(g);
+            batch.add(f);
+            //blocklists travel in one message, keep it far below the size limit
+            batchHashes[g] += Math.max(1, f.length() / blockSize);
+            if (batch.size() == SYNC_BATCH || batchHashes[g] >= SYNC_BATCH_HASHES) {
+                uploaded += syncBatch(batch, metadataStubs.get(g));
+                batch.clear();
+                batchHashes[g] = 0;
+            }
+        }
+        for (int g = 0; g < groups; g++) {
+            if (!batches.get(g).isEmpty())
+                uploaded += syncBatch(batches.get(g), metadataStubs.get(g));
+        }
+        return uploaded;
+    }
+
+    private int syncBatch(List<File> files, MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub) throws IOException {
+        //block data is not kept after hashing, so a batch costs memory for its hashes only;
+        //the blocks the server asks for are read back from the files
+        List<List<String>> hashlists = new ArrayList<>();
+        FileInfoList.Builder reads = FileInfoList.newBuilder();
+        for (File f : files) {
+            hashlists.add(hashIndex.hashlist(f.toPath(), blockSize, null));
+            reads.addFiles(metadataCache.request(f.getName()));
+        }
+        List<FileInfo> remote = metadataStub.readFiles(reads.build()).getFilesList();
+
+        //files that differ from the server, and where to find each of their blocks
+        List<FileInfo.Builder> pending = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        long storeId = 0;
+        Map<String, String> blockPath = new HashMap<>();
+        Map<String, Integer> blockIndex = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            FileInfo current = metadataCache.resolve(remote.get(i));
+            if (current == null)
+                current = readFile(f.getName());
+            storeId = current.getStoreId();
+            List<String> hash_list = hashlists.get(i);
+            if (current.getVersion() != 0 && current.getBlocklistList().equals(hash_list)
+                    && HashUtils.blockSizeOf(current.getBlockSize()) == blockSize)
+                continue;
+            FileInfo.Builder write = FileInfo.newBuilder().setFilename(f.getName()).setVersion(current.getVersion() + 1)
+                    .setBlockSize(blockSize).addAllBlocklist(hash_list);
+            byte[] inline = inlineData(f.getPath(), hash_list, null);
+            if (inline != null)
+                write.setInlineData(ByteString.copyFrom(inline));
+            pending.add(write);
+            paths.add(f.getPath());
+            for (int j = hash_list.size() - 1; j >= 0; j--) {
+                blockPath.put(hash_list.get(j), f.getPath());
+                blockIndex.put(hash_list.get(j), j);
+            }
+        }
+
+        int uploaded = 0;
+        while (!pending.isEmpty()) {
+            FileInfoList.Builder writes = FileInfoList.newBuilder();
+            for (FileInfo.Builder fi : pending) {
+                inlineBytes.addAndGet(fi.getInlineData().size());
+                writes.addFiles(fi);
+            }
+            List<WriteResult> results;
+            try {
+                results = metadataStub.modifyFiles(writes.build()).getResultsList();
+            } catch (StatusRuntimeException e) {
+                if (!refusedInline(e, pending))
+                    throw e;
+                continue;
+            }
+            List<FileInfo.Builder> retry = new ArrayList<>();
+            Set<String> missing = new LinkedHashSet<>();
+            for (int i = 0; i < results.size(); i++) {
+                WriteResult res = results.get(i);
+                FileInfo.Builder fi = pending.get(i);
+                switch (res.getResultValue()) {
+                    case 0:
+                        cacheWrite(fi, res, storeId);
+                        uploaded++;
+                        continue;
+                    case 2:
+                        missing.addAll(res.getMissingBlocksList());
+                        break;
+                    case 3:
+                        throw new IOException("Not the leader");
+                }
+                fi.setVersion(res.getCurrentVersion() + 1);
+                retry.add(fi);
+            }
+            storeBlocks(missing, blockPath, blockIndex);
+            pending = retry;
+        }
+        return uploaded;
+    }
+
+    //store blocks with up to STORE_WINDOW requests in flight
+    private void storeBlocks(Collection<String> hashes, Map<String, String> blockPath,
+                             Map<String, Integer> blockIndex) throws IOException {
+        List<ListenableFuture<Empty>> window = new ArrayList<>();
+        Iterator<String> it = hashes.iterator();
+        while (it.hasNext()) {
+            String hash = it.next();
+            byte[] data = readBlockAt(blockPath.get(hash), blockIndex.get(hash), hash);
+            window.add(asyncBlockStub.storeBlock(Block.newBuilder().setHash(hash).setData(ByteString.copyFrom(data)).build()));
+            if (window.size() == STORE_WINDOW || !it.hasNext()) {
+                try {
+                    Futures.allAsList(window).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                window.clear();
+            }
+        }
+    }
+
+    //remember what we just wrote, unless the write did not commit
+    private void cacheWrite(FileInfo.Builder written, WriteResult res, long storeId) {
+        if (res.getResultValue() == 0 && res.getCurrentVersion() == written.getVersion()) {
+            metadataCache.put(written.setStoreId(storeId).build());
+        }
     }
 
     public void delete(String path) throws NoSuchFileException{
         FileInfo.Builder fileinfo_builder=FileInfo.newBuilder();
         fileinfo_builder.setFilename(path);
-        FileInfo readfile_res=metadataStub.readFile(fileinfo_builder.build());
+        FileInfo readfile_res=readFile(path);
         if((readfile_res.getBlocklistCount() == 1&&
                 readfile_res.getBlocklist(0).equals("0"))||
                 readfile_res.getVersion() == 0)
             throw new NoSuchFileException(path);
         fileinfo_builder.setVersion(readfile_res.getVersion()+1);
-        WriteResult modify_res=metadataStub.deleteFile(fileinfo_builder.build());
-        //do something else????
+        WriteResult modify_res=metadataStub(path).deleteFile(fileinfo_builder.build());
+        cacheWrite(fileinfo_builder.addBlocklist("0"), modify_res, readfile_res.getStoreId());
     }
 
     public int getVersion(String path) {
-        FileInfo.Builder fileinfo_builder=FileInfo.newBuilder();
-        fileinfo_builder.setFilename(path);
-        FileInfo readfile_res=metadataStub.readFile(fileinfo_builder.build());
-        System.out.println(readfile_res.getVersion());//print version
+        FileInfo readfile_res=readFile(path);
         return readfile_res.getVersion();
     }
 
+    /**
+     * Existing files whose names start with prefix, in name order, merged
+     * across replication groups. Each group's ListFiles stream is read as
+     * the iterator advances, so memory stays small however many files match.
+     * @param prefix
+     */
+    public Iterator<FileInfo> list(String prefix) {
+        List<Iterator<FileInfo>> groups = new ArrayList<>();
+        ListFilesRequest request = ListFilesRequest.newBuilder().setPrefix(prefix).build();
+        for (MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub : metadataStubs) {
+            groups.add(Iterators.concat(Iterators.transform(metadataStub.listFiles(request),
+                    new Function<FileInfoList, Iterator<FileInfo>>() {
+                        @Override
+                        public Iterator<FileInfo> apply(FileInfoList page) {
+                            return page.getFilesList().iterator();
+                        }
+                    })));
+        }
+        return Iterators.mergeSorted(groups, new Comparator<FileInfo>() {
+            @Override
+            public int compare(FileInfo a, FileInfo b) {
+                return a.getFilename().compareTo(b.getFilename());
+            }
+        });
+    }
 
+    /**
+     * Print committed changes after fromIndex as "index filename version [deleted]",
+     * until the streams end. The numbering server's id is printed first as
+     * "store id", and "resync" when it no longer accepts the index given:
+     * what follows is every file from the start. Resume after a disconnect
+     * with the last printed index and store id.
+     * Each replication group numbers its changes separately: with several
+     * groups, fromIndex holds one index per group and lines start with "group:".
+     * @param fromIndex
+     * @param storeId store id per group, 0 = unknown
+     */
+    public void watch(final long[] fromIndex, final long[] storeId) throws InterruptedException {
+        final int groups = metadataStubs.size();
+        List<Thread> threads = new ArrayList<>();
+        for (int g = 0; g < groups; g++) {
+            final int group = g;
+            final String prefix = groups > 1 ? (group + 1) + ":" : "";
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long known = group < storeId.length ? storeId[group] : 0;
+                    Iterator<WatchEvent> events = metadataStubs.get(group).watch(WatchRequest.newBuilder()
+                            .setFromIndex(group < fromIndex.length ? fromIndex[group] : 0)
+                            .setStoreId(known).build());
+                    boolean printed = false;
+                    while (events.hasNext()) {
+                        WatchEvent event = events.next();
+                        if (!printed || event.getStoreId() != known) {
+                            System.out.println(prefix + "store " + event.getStoreId());
+                            known = event.getStoreId();
+                            printed = true;
+                        }
+                        if (event.getResync()) {
+                            System.out.println(prefix + "resync");
+                            continue;
+                        }
+                        System.out.println(prefix + event.getIndex() + " " + event.getFilename() + " "
+                                + event.getVersion() + (event.getDeleted() ? " deleted" : ""));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
 
 
-	private void go(String operation, String filePath, String downPath) {
-		metadataStub.ping(Empty.newBuilder().build());
-        logger.info("Successfully pinged the Metadata server");
+
+
+    /**
+     * Drop the least recently used blocks until the kept ones take at most
+     * maxBytes, so a long-running client does not keep every block it saw.
+     * @param maxBytes
+     */
+    void trimBlocks(long maxBytes) {
+        long total = 0;
+        for (byte[] data : hash_to_data.values()) {
+            total += data.length;
+        }
+        Iterator<byte[]> eldest = hash_to_data.values().iterator();
+        while (total > maxBytes && eldest.hasNext()) {
+            total -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    void saveCaches() throws IOException {
+        metadataCache.save();
+        hashIndex.save();
+    }
+
+    void ping() {
+        for (MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub : metadataStubs) {
+            metadataStub.ping(Empty.newBuilder().build());
+        }
+        logger.fine("Successfully pinged the Metadata servers");
         
         blockStub.ping(Empty.newBuilder().build());
-        logger.info("Successfully pinged the Blockstore server");
+        logger.fine("Successfully pinged the Blockstore server");
+    }
 
+	void go(String operation, String filePath, String downPath, PrintStream out) {
         try {
             switch (operation) {
                 case "download":
                     download(filePath, downPath);
-                    System.out.println("OK");
+                    out.println("OK");
                     break;
                 case "upload":
                     upLoad(filePath);
-                    System.out.println("OK");
+                    out.println("OK");
                     break;
                 case "delete":
                     delete(filePath);
-                    System.out.println("OK");
+                    out.println("OK");
                     break;
                 case "getversion":
-                    getVersion(filePath);
+                    out.println(getVersion(filePath));
                     break;
+                case "list":
+                    //"filename version" per existing file under the prefix
+                    Iterator<FileInfo> files = list(filePath == null ? "" : filePath);
+                    while (files.hasNext()) {
+                        FileInfo fi = files.next();
+                        out.println(fi.getFilename() + " " + fi.getVersion());
+                    }
+                    break;
+                case "sync":
+                    sync(filePath);
+                    out.println("OK");
+                    break;
+                case "watch":
+                    //one "index[@storeId]" per group, comma separated
+                    String[] indexes = filePath == null ? new String[0] : filePath.split(",");
+                    long[] fromIndex = new long[indexes.length];
+                    long[] storeId = new long[indexes.length];
+                    for (int i = 0; i < indexes.length; i++) {
+                        String[] parts = indexes[i].trim().split("@", 2);
+                        fromIndex[i] = Long.parseLong(parts[0]);
+                        storeId[i] = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+                    }
+                    watch(fromIndex, storeId);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + operation);
             }
         } catch (IOException e) {
-            System.out.println("Not Found");
+            out.println("Not Found");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
 	}
@@ -181,15 +647,21 @@ public final class Client {
                 .description("Client for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
-        if(args.length > 1) {
-            parser.addArgument("operation").type(String.class)
-                    .help("Operation of client");
-            parser.addArgument("filePath").type(String.class)
-                    .help("Path to client target");
-        }
-        if (args.length > 3)
-            parser.addArgument("downloadDir").type(String.class)
-                    .help("Directory of download location");
+        //optional positionals, so flags such as --block-size can go anywhere
+        parser.addArgument("operation").type(String.class).nargs("?")
+                .help("Operation of client");
+        parser.addArgument("filePath").type(String.class).nargs("?")
+                .help("Path to client target");
+        parser.addArgument("downloadDir").type(String.class).nargs("?")
+                .help("Directory of download location");
+        parser.addArgument("-b", "--block-size").type(Integer.class)
+                .help("Block size for uploads (default: blocksize from the config file, or 4096)");
+        parser.addArgument("--cache-dir").type(String.class)
+                .help("Directory for the local metadata cache (default: ~/.surfstore)");
+        parser.addArgument("--metrics").action(Arguments.storeTrue())
+                .help("Print RPC metrics to stderr before exiting");
+        parser.addArgument("--daemon-port").type(Integer.class).setDefault(ClientDaemon.DEFAULT_PORT)
+                .help("Loopback port the \"daemon\" operation listens on");
         
         Namespace res = null;
         try {
@@ -209,12 +681,23 @@ public final class Client {
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
 
-        Client client = new Client(config);
+        Integer blockSize = c_args.getInt("block_size");
+        File cacheDir = c_args.getString("cache_dir") == null ? defaultCacheDir() : new File(c_args.getString("cache_dir"));
+        Client client = new Client(config, blockSize == null ? config.getBlockSize() : blockSize, cacheDir);
 
         try {
-        	client.go(c_args.getString("operation"), c_args.getString("filePath"), c_args.getString("downloadDir"));
+            client.ping();
+            if ("daemon".equals(c_args.getString("operation"))) {
+                new ClientDaemon(client, c_args.getInt("daemon_port"), cacheDir).run();
+            } else {
+                client.go(c_args.getString("operation"), c_args.getString("filePath"),
+                        c_args.getString("downloadDir"), System.out);
+            }
         } finally {
             client.shutdown();
+            if (c_args.getBoolean("metrics")) {
+                System.err.print(Metrics.report());
+            }
         }
     }
 
@@ -0,0 +1,196 @@
+package surfstore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.logging.Logger;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Long-running client that keeps its channels, metadata cache, hash index
+ * and recently used blocks between operations, and takes commands on a
+ * loopback socket.
+ *
+ * Each connection carries one command: a line of tab-separated fields
+ * "token operation [filePath [downloadDir]]", answered with the same output
+ * the one-shot client prints, after which the daemon closes the connection.
+ * The token is a random string the daemon writes at startup to
+ * daemon-PORT.token in the cache directory, readable by its owner only, so
+ * other local users cannot send commands.
+ * Failures are answered with a line starting with "ERROR ". "stop" shuts
+ * the daemon down. Commands run one at a time, in arrival order, so a
+ * connection that sends no full line within COMMAND_TIMEOUT_MS is dropped
+ * rather than holding up the ones behind it; watch is not accepted since
+ * it never finishes. Relative paths are resolved against the daemon's
+ * working directory; main() here, the thin command line front end, sends
+ * absolute paths.
+ */
+public final class ClientDaemon {
+    private static final Logger logger = Logger.getLogger(ClientDaemon.class.getName());
+    public static final int DEFAULT_PORT = 7390;
+    //blocks kept between commands
+    static final long BLOCK_CACHE_BYTES = 64L << 20;
+    //how often the metadata cache and hash index are written out
+    static final long SAVE_INTERVAL_MS = 30000;
+    //how long a connection may take to send its command line
+    static final int COMMAND_TIMEOUT_MS = 5000;
+
+    private final Client client;
+    private final int port;
+    private final Path tokenFile;
+    private byte[] token;
+    private long lastSave = System.currentTimeMillis();
+
+    public ClientDaemon(Client client, int port, File cacheDir) {
+        this.client = client;
+        this.port = port;
+        this.tokenFile = tokenFile(cacheDir, port);
+    }
+
+    static Path tokenFile(File cacheDir, int port) {
+        return new File(cacheDir, "daemon-" + port + ".token").toPath();
+    }
+
+    //a fresh token for this run, in a file only the owner can read
+    private void writeToken() throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String encoded = BaseEncoding.base64Url().omitPadding().encode(random);
+        Files.createDirectories(tokenFile.getParent());
+        Files.deleteIfExists(tokenFile);
+        Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(
+                EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        Files.write(tokenFile, encoded.getBytes(StandardCharsets.UTF_8));
+        token = encoded.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //serve commands until "stop"
+    public void run() throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            writeToken();
+            logger.info("Client daemon listening on 127.0.0.1:" + server.getLocalPort() + ", token in " + tokenFile);
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    running = serve(socket);
+                } catch (IOException e) {
+                    logger.warning("Command connection failed: " + e);
+                }
+                client.trimBlocks(BLOCK_CACHE_BYTES);
+                if (!running || System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MS) {
+                    try {
+                        client.saveCaches();
+                    } catch (IOException e) {
+                        logger.warning("Failed to save the client caches: " + e);
+                    }
+                    lastSave = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+
+    //false once the daemon should stop
+    private boolean serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(COMMAND_TIMEOUT_MS);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+        String line = in.readLine();
+        if (line == null) {
+            return true;
+        }
+        String[] fields = line.split("\t", -1);
+        String operation = fields.length > 1 ? fields[1] : "";
+        try {
+            //constant time, so the token cannot be guessed from response times
+            if (!MessageDigest.isEqual(token, fields[0].getBytes(StandardCharsets.UTF_8))) {
+                logger.warning("Rejected a command with a wrong token");
+                throw new IllegalArgumentException("wrong or missing token");
+            }
+            if ("stop".equals(operation)) {
+                out.println("OK");
+                return false;
+            }
+            if ("watch".equals(operation) || "daemon".equals(operation)) {
+                throw new IllegalArgumentException(operation + " is not supported by the daemon");
+            }
+            client.go(operation, field(fields, 2), field(fields, 3), out);
+        } catch (RuntimeException e) {
+            out.println("ERROR " + e);
+        } finally {
+            out.flush();
+        }
+        return true;
+    }
+
+    private static String field(String[] fields, int i) {
+        return i < fields.length && !fields[i].isEmpty() ? fields[i] : null;
+    }
+
+    /**
+     * Thin front end: send one command to a running daemon and print the
+     * answer. Usage: [-p port] [-d cacheDir] operation [filePath
+     * [downloadDir]]. Exits with status 1 if the daemon answers with an error.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        File cacheDir = Client.defaultCacheDir();
+        int first = 0;
+        while (args.length >= first + 2) {
+            if (args[first].equals("-p") || args[first].equals("--daemon-port")) {
+                port = Integer.parseInt(args[first + 1]);
+            } else if (args[first].equals("-d") || args[first].equals("--cache-dir")) {
+                cacheDir = new File(args[first + 1]);
+            } else {
+                break;
+            }
+            first += 2;
+        }
+        if (args.length <= first) {
+            System.err.println("usage: runClientCommand [-p port] [-d cacheDir] operation [filePath [downloadDir]]");
+            System.exit(2);
+        }
+        String operation = args[first];
+        String token = new String(Files.readAllBytes(tokenFile(cacheDir, port)), StandardCharsets.UTF_8).trim();
+        StringBuilder command = new StringBuilder(token).append('\t').append(operation);
+        for (int i = first + 1; i < args.length; i++) {
+            //local paths are made absolute; remote file names are sent as given
+            boolean localPath = ("upload".equals(operation) || "sync".equals(operation)) && i == first + 1
+                    || "download".equals(operation) && i == first + 2;
+            command.append('\t').append(localPath ? new File(args[i]).getAbsolutePath() : args[i]);
+        }
+
+        boolean failed = false;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(command.append('\n').toString());
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                failed |= line.startsWith("ERROR ");
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
@@ -2,23 +2,37 @@ package surfstore;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.hash.Hashing;
+
 public final class ConfigReader {
     private static final String numMetadataMatchStr = "M(:|=)\\s*(?<numMetadata>\\d+)";
     private static final String leaderNumMatchStr = "L(:|=)\\s*(?<leaderNum>\\d+)";
     private static final String metadataInstMatchStr = "metadata(?<metadataId>\\d+)(:|=)\\s*(?<metadataPort>\\d+)";
     private static final String blockInstMatchStr = "block(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String blockSizeMatchStr = "blocksize(:|=)\\s*(?<blockSize>\\d+)";
+    private static final String inlineSizeMatchStr = "inline(:|=)\\s*(?<inlineSize>\\d+)";
+    private static final String groupMatchStr = "group(?<groupId>\\d+)(:|=)\\s*(?<groupMembers>\\d+(\\s*,\\s*\\d+)*)";
     
     private static final Pattern configMatcher = Pattern.compile(
-            String.format("((%s)|(%s)|(%s)|(%s))\\s*",
+            String.format("((%s)|(%s)|(%s)|(%s)|(%s)|(%s)|(%s))\\s*",
                 numMetadataMatchStr,
                 metadataInstMatchStr,
                 blockInstMatchStr,
-                leaderNumMatchStr
+                leaderNumMatchStr,
+                blockSizeMatchStr,
+                inlineSizeMatchStr,
+                groupMatchStr
             ));
 
     protected File configFile;
@@ -28,6 +42,10 @@ public final class ConfigReader {
     public HashMap<Integer, Integer> metadataPorts;
     public Integer blockPort;
     public Integer leaderNum;
+    public Integer blockSize;
+    public Integer inlineSize;
+    //replication groups by number, each a list of metadata server ids with the leader first
+    public HashMap<Integer, List<Integer>> groups;
     
 	public ConfigReader(File configFile) throws FileNotFoundException {
 		if (!configFile.exists()) {
@@ -51,6 +69,7 @@ public final class ConfigReader {
 
 	protected void parseConfigFile() {
         metadataPorts = new HashMap<Integer, Integer>();
+        groups = new HashMap<Integer, List<Integer>>();
 
         for(String line : config.split("\\r?\\n")) {
             Matcher result = configMatcher.matcher(line);
@@ -66,6 +85,19 @@ public final class ConfigReader {
                                   Integer.parseInt(result.group("metadataPort")));
             } else if (result.group("blockPort") != null) {
                 blockPort = Integer.parseInt(result.group("blockPort"));
+            } else if (result.group("blockSize") != null) {
+                blockSize = Integer.parseInt(result.group("blockSize"));
+                HashUtils.checkBlockSize(blockSize);
+            } else if (result.group("inlineSize") != null) {
+                inlineSize = Integer.parseInt(result.group("inlineSize"));
+                if (inlineSize > HashUtils.MAX_BLOCK_SIZE)
+                    throw new IllegalArgumentException("Inline size must be at most " + HashUtils.MAX_BLOCK_SIZE + ": " + inlineSize);
+            } else if (result.group("groupId") != null) {
+                List<Integer> members = new ArrayList<>();
+                for (String id : result.group("groupMembers").split("\\s*,\\s*")) {
+                    members.add(Integer.parseInt(id));
+                }
+                groups.put(Integer.parseInt(result.group("groupId")), members);
             } else{
                 System.err.println("ConfigReader: Invalid line:\n" + line);
             }
@@ -79,6 +111,26 @@ public final class ConfigReader {
             if (!metadataPorts.containsKey(i))
                 throw new RuntimeException("Must set port for metadata" + i);
         }
+
+        //without group lines, all servers form one group led by L
+        if (groups.isEmpty()) {
+            List<Integer> members = new ArrayList<>();
+            members.add(leaderNum);
+            for (int i = 1; i <= numMetadataServers; i++) {
+                if (i != leaderNum)
+                    members.add(i);
+            }
+            groups.put(1, members);
+        }
+        Set<Integer> seen = new HashSet<>();
+        for (int g = 1; g <= groups.size(); g++) {
+            if (!groups.containsKey(g))
+                throw new RuntimeException("Groups must be numbered 1 to " + groups.size() + ", missing group" + g);
+            for (int id : groups.get(g)) {
+                if (!metadataPorts.containsKey(id) || !seen.add(id))
+                    throw new RuntimeException("group" + g + ": metadata" + id + " is unknown or in two groups");
+            }
+        }
     }
 
     public int getNumMetadataServers() {
@@ -96,4 +148,41 @@ public final class ConfigReader {
     public int getLeaderNum() {
     	return leaderNum;
     }
+
+    //optional "groupN: leader,follower,..." lines; one group of all servers by default
+    public int getNumGroups() {
+        return groups.size();
+    }
+
+    public List<Integer> getGroupMembers(int group) {
+        return groups.get(group);
+    }
+
+    public int getGroupLeader(int group) {
+        return groups.get(group).get(0);
+    }
+
+    public int getGroupOf(int serverId) {
+        for (Map.Entry<Integer, List<Integer>> e : groups.entrySet()) {
+            if (e.getValue().contains(serverId))
+                return e.getKey();
+        }
+        throw new RuntimeException("metadata" + serverId + " is in no group");
+    }
+
+    //group that owns the file, by hash of its name
+    public int getGroupForFile(String filename) {
+        int hash = Hashing.murmur3_32().hashString(filename, StandardCharsets.UTF_8).asInt();
+        return 1 + Math.floorMod(hash, groups.size());
+    }
+
+    //optional "blocksize: N" line, defaults to 4096
+    public int getBlockSize() {
+        return blockSize == null ? HashUtils.DEFAULT_BLOCK_SIZE : blockSize;
+    }
+
+    //optional "inline: N" line, defaults to 4096; 0 turns inline writes off
+    public int getInlineSize() {
+        return inlineSize == null ? HashUtils.DEFAULT_INLINE_SIZE : inlineSize;
+    }
 }
\ No newline at end of file
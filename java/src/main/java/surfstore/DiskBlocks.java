@@ -0,0 +1,127 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Cold tier of the BlockStore: one file per block under a data directory.
+ *
+ * A block is stored at dir/xy/name, where name is its base64 hash with
+ * '/' and '+' made filename-safe and xy its first two characters. Blocks
+ * are written to a temporary file, forced to disk, and renamed into place,
+ * and the directory is forced after the rename, so a crash never leaves a
+ * partial block under a block's name and put() returns only once the block
+ * survives a crash. The set of stored hashes is kept in
+ * memory, so has() costs no disk access.
+ */
+final class DiskBlocks {
+    private static final Logger logger = Logger.getLogger(DiskBlocks.class.getName());
+    private static final Pattern BASE64 = Pattern.compile("[A-Za-z0-9+/]+=*");
+
+    private final Metrics.Timer readTimer = Metrics.timer("blockstore.disk_read");
+    private final Metrics.Timer writeTimer = Metrics.timer("blockstore.disk_write");
+    private final Path dir;
+    private final Set<String> hashes = ConcurrentHashMap.newKeySet();
+
+    DiskBlocks(File dir) throws IOException {
+        this.dir = dir.toPath();
+        Files.createDirectories(this.dir);
+        load();
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(dir)) {
+            for (Path sub : fanout) {
+                if (!Files.isDirectory(sub))
+                    continue;
+                try (DirectoryStream<Path> blocks = Files.newDirectoryStream(sub)) {
+                    for (Path block : blocks) {
+                        String name = block.getFileName().toString();
+                        if (name.endsWith(".tmp")) {
+                            //left over from a crash during put
+                            Files.deleteIfExists(block);
+                        } else {
+                            hashes.add(hashOf(name));
+                        }
+                    }
+                }
+            }
+        }
+        logger.info("Found " + hashes.size() + " blocks in " + dir);
+    }
+
+    //make a directory's entries durable, so a renamed or created file survives a crash
+    private static void force(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static String nameOf(String hash) {
+        return hash.replace('/', '_').replace('+', '-');
+    }
+
+    private static String hashOf(String name) {
+        return name.replace('_', '/').replace('-', '+');
+    }
+
+    private Path pathOf(String hash) {
+        if (!BASE64.matcher(hash).matches())
+            throw new IllegalArgumentException("Not a base64 block hash: " + hash);
+        String name = nameOf(hash);
+        return dir.resolve(name.substring(0, Math.min(2, name.length()))).resolve(name);
+    }
+
+    boolean has(String hash) {
+        return hashes.contains(hash);
+    }
+
+    //block data, or null if the block is not stored
+    byte[] get(String hash) throws IOException {
+        if (!hashes.contains(hash)) {
+            return null;
+        }
+        long start = readTimer.start();
+        byte[] data = Files.readAllBytes(pathOf(hash));
+        readTimer.addBytesIn(data.length);
+        readTimer.stop(start);
+        return data;
+    }
+
+    void put(String hash, byte[] data) throws IOException {
+        if (hashes.contains(hash)) {
+            return;
+        }
+        long start = writeTimer.start();
+        Path path = pathOf(hash);
+        boolean newDir = !Files.isDirectory(path.getParent());
+        Files.createDirectories(path.getParent());
+        if (newDir) {
+            force(dir);
+        }
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        force(path.getParent());
+        hashes.add(hash);
+        writeTimer.addBytesOut(data.length);
+        writeTimer.stop(start);
+    }
+}
@@ -0,0 +1,295 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Client-side index of blocklists already computed for local files.
+ *
+ * An entry is keyed by absolute path and stamped with the file's mtime,
+ * size and inode (the JDK file key). If all three are unchanged, the stored
+ * blocklist is returned without reading the file. Otherwise the file is read
+ * again, but each block is first compared against a stored SipHash-2-4
+ * fingerprint, and SHA-256 only runs for blocks that changed. The SipHash
+ * key is random per index, so nobody without the index file can craft a
+ * changed block whose fingerprint matches the old one.
+ *
+ * A matching fingerprint is taken as proof that a block is unchanged and
+ * its stored SHA-256 is reused. That assumes no accidental 64-bit
+ * collision between a block and its own earlier contents, a chance of
+ * about 2^-64 per changed block.
+ *
+ * As in git, an entry written within RACY_MILLIS of the file's mtime is
+ * never trusted on stat alone, because a later write may not move the mtime.
+ *
+ * On disk: magic, the two halves of the key, count, then per entry the
+ * path, stamps, block size and 32 + 8 raw bytes per block. A null file
+ * keeps the index in memory only.
+ */
+final class HashIndex {
+    private static final Logger logger = Logger.getLogger(HashIndex.class.getName());
+    private static final int MAGIC = 0x53534832; //"SSH2"
+    private static final int HASH_BYTES = 32;
+    private static final int FINGERPRINT_BYTES = 8;
+    private static final long RACY_MILLIS = 2000;
+
+    private final Metrics.Timer indexTimer = Metrics.timer("hash.index");
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long k0;
+    private long k1;
+    private HashFunction keyedHash;
+    private boolean dirty;
+
+    HashIndex(File file) {
+        this.file = file;
+        if (file == null || !file.exists() || !load()) {
+            SecureRandom random = new SecureRandom();
+            setKey(random.nextLong(), random.nextLong());
+        }
+    }
+
+    private void setKey(long k0, long k1) {
+        this.k0 = k0;
+        this.k1 = k1;
+        this.keyedHash = Hashing.sipHash24(k0, k1);
+    }
+
+    /**
+     * Blocklist of path at blockSize, reading as little of the file as the
+     * index allows. Blocks that had to be hashed again are put into blocks,
+     * unless blocks is null.
+     */
+    List<String> hashlist(Path path, int blockSize, Map<String, byte[]> blocks) throws IOException {
+        HashUtils.checkBlockSize(blockSize);
+        long start = indexTimer.start();
+        //stat before reading, so a write during the read shows up next time
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        String key = path.toAbsolutePath().toString();
+        Entry old;
+        synchronized (this) {
+            old = entries.get(key);
+        }
+        if (old != null && old.blockSize == blockSize && old.matches(attrs)) {
+            indexTimer.stop(start);
+            return old.hashes();
+        }
+
+        boolean reuse = old != null && old.blockSize == blockSize;
+        List<byte[]> hashes = new ArrayList<>();
+        List<byte[]> fingerprints = new ArrayList<>();
+        byte[] buffer = new byte[blockSize];
+        long bytesRead = 0;
+        try (InputStream is = Files.newInputStream(path)) {
+            int readByte;
+            while ((readByte = HashUtils.readBlock(is, buffer)) > 0) {
+                bytesRead += readByte;
+                int i = hashes.size();
+                byte[] fingerprint = keyedHash.hashBytes(buffer, 0, readByte).asBytes();
+                if (reuse && i < old.count() && old.fingerprintEquals(i, fingerprint)) {
+                    hashes.add(old.hash(i));
+                } else {
+                    byte[] block = Arrays.copyOf(buffer, readByte);
+                    String encoded = HashUtils.sha256(block);
+                    if (blocks != null)
+                        blocks.put(encoded, block);
+                    hashes.add(Base64.getDecoder().decode(encoded));
+                }
+                fingerprints.add(fingerprint);
+            }
+        }
+        Entry entry = new Entry(attrs, System.currentTimeMillis(), blockSize, hashes, fingerprints);
+        synchronized (this) {
+            entries.put(key, entry);
+            dirty = true;
+        }
+        indexTimer.addBytesIn(bytesRead);
+        indexTimer.stop(start);
+        return entry.hashes();
+    }
+
+    //index a file the client just wrote from these blocks, e.g. after a download
+    void record(Path path, int blockSize, List<String> hashlist, Map<String, byte[]> blocks) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        List<byte[]> hashes = new ArrayList<>();
+        List<byte[]> fingerprints = new ArrayList<>();
+        for (String hash : hashlist) {
+            hashes.add(Base64.getDecoder().decode(hash));
+            fingerprints.add(keyedHash.hashBytes(blocks.get(hash)).asBytes());
+        }
+        Entry entry = new Entry(attrs, System.currentTimeMillis(), blockSize, hashes, fingerprints);
+        synchronized (this) {
+            entries.put(path.toAbsolutePath().toString(), entry);
+            dirty = true;
+        }
+    }
+
+    //false if the index could not be read, or is in an older format
+    private boolean load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            setKey(in.readLong(), in.readLong());
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String path = in.readUTF();
+                Entry entry = Entry.read(in);
+                entries.put(path, entry);
+            }
+            return true;
+        } catch (IOException e) {
+            //a broken index only costs re-hashing
+            logger.warning("Ignoring hash index " + file + ": " + e);
+            entries.clear();
+            dirty = true;
+            return false;
+        }
+    }
+
+    //drops entries of files that no longer exist, then replaces the file atomically
+    synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        Iterator<String> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!new File(paths.next()).exists()) {
+                paths.remove();
+            }
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        //owner-only, as the file holds the fingerprint key
+        Path tmp = Files.createTempFile(parent.toPath(), file.getName(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(k0);
+            out.writeLong(k1);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private static final class Entry {
+        final long mtimeNanos;
+        final long size;
+        final String fileKey;
+        final long indexedMillis;
+        final int blockSize;
+        //raw SHA-256 hashes and fingerprints, back to back
+        final byte[] hashes;
+        final byte[] fingerprints;
+
+        Entry(long mtimeNanos, long size, String fileKey, long indexedMillis, int blockSize,
+              byte[] hashes, byte[] fingerprints) {
+            this.mtimeNanos = mtimeNanos;
+            this.size = size;
+            this.fileKey = fileKey;
+            this.indexedMillis = indexedMillis;
+            this.blockSize = blockSize;
+            this.hashes = hashes;
+            this.fingerprints = fingerprints;
+        }
+
+        Entry(BasicFileAttributes attrs, long indexedMillis, int blockSize, List<byte[]> hashes, List<byte[]> fingerprints) {
+            this(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size(), fileKey(attrs),
+                    indexedMillis, blockSize, concat(hashes, HASH_BYTES), concat(fingerprints, FINGERPRINT_BYTES));
+        }
+
+        private static String fileKey(BasicFileAttributes attrs) {
+            return attrs.fileKey() == null ? "" : attrs.fileKey().toString();
+        }
+
+        private static byte[] concat(List<byte[]> parts, int width) {
+            byte[] res = new byte[parts.size() * width];
+            for (int i = 0; i < parts.size(); i++) {
+                System.arraycopy(parts.get(i), 0, res, i * width, width);
+            }
+            return res;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            boolean racy = TimeUnit.NANOSECONDS.toMillis(mtime) + RACY_MILLIS >= indexedMillis;
+            return !racy && mtime == mtimeNanos && attrs.size() == size && fileKey(attrs).equals(fileKey);
+        }
+
+        int count() {
+            return hashes.length / HASH_BYTES;
+        }
+
+        byte[] hash(int i) {
+            return Arrays.copyOfRange(hashes, i * HASH_BYTES, (i + 1) * HASH_BYTES);
+        }
+
+        boolean fingerprintEquals(int i, byte[] fingerprint) {
+            for (int j = 0; j < FINGERPRINT_BYTES; j++) {
+                if (fingerprints[i * FINGERPRINT_BYTES + j] != fingerprint[j])
+                    return false;
+            }
+            return true;
+        }
+
+        List<String> hashes() {
+            List<String> res = new ArrayList<>(count());
+            Base64.Encoder encoder = Base64.getEncoder();
+            for (int i = 0; i < count(); i++) {
+                res.add(encoder.encodeToString(hash(i)));
+            }
+            return res;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(mtimeNanos);
+            out.writeLong(size);
+            out.writeUTF(fileKey);
+            out.writeLong(indexedMillis);
+            out.writeInt(blockSize);
+            out.writeInt(count());
+            out.write(hashes);
+            out.write(fingerprints);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            long mtimeNanos = in.readLong();
+            long size = in.readLong();
+            String fileKey = in.readUTF();
+            long indexedMillis = in.readLong();
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            byte[] hashes = new byte[count * HASH_BYTES];
+            byte[] fingerprints = new byte[count * FINGERPRINT_BYTES];
+            in.readFully(hashes);
+            in.readFully(fingerprints);
+            return new Entry(mtimeNanos, size, fileKey, indexedMillis, blockSize, hashes, fingerprints);
+        }
+    }
+}
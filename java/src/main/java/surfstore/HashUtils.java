@@ -11,9 +11,18 @@ import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class HashUtils {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    //a Block message must stay below ServerOptions.MAX_MESSAGE_SIZE
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    //files up to this size are sent inline with the metadata write
+    public static final int DEFAULT_INLINE_SIZE = 4096;
+
+    private static final Metrics.Timer sha256Timer = Metrics.timer("hash.sha256");
+    private static final Metrics.Timer hashlistTimer = Metrics.timer("hash.compute_hashlist");
 
     //compute hash value of an array of byte
     public static String sha256(byte[] data){
+        long start = sha256Timer.start();
         MessageDigest digest = null;
         try {
             digest = MessageDigest.getInstance("SHA-256");
@@ -23,31 +32,57 @@ public class HashUtils {
         }
         byte[] hash = digest.digest(data);
         String encoded = Base64.getEncoder().encodeToString(hash);
+        sha256Timer.stop(start);
         return encoded;
     }
 
     //compute the hashlist corresponding to the give file. Save blocks in the given map.
     public static List<String> compute_hashlist(String filePath, Map<String, byte[]> map) throws IOException{
+        return compute_hashlist(filePath, map, DEFAULT_BLOCK_SIZE);
+    }
+
+    //same as above with blocks of blockSize bytes; only the last block may be shorter
+    public static List<String> compute_hashlist(String filePath, Map<String, byte[]> map, int blockSize) throws IOException{
+        checkBlockSize(blockSize);
+        long start = hashlistTimer.start();
         List<String> res = new ArrayList<>();
-        byte[] buffer = new byte[4096];
-        byte[] tempBuffer = new byte[4096];
+        byte[] buffer = new byte[blockSize];
         try (InputStream is = Files.newInputStream(Paths.get(filePath))) {
             int readByte;
-            while ((readByte = is.read(buffer)) >= 0) {
-                if(readByte < 4096)
-                    tempBuffer = new byte[readByte];
-                    System.arraycopy(buffer, 0, tempBuffer, 0, readByte);
-                    buffer = tempBuffer;
-                String encoded = sha256(buffer);
+            while ((readByte = readBlock(is, buffer)) > 0) {
+                byte[] block = readByte == blockSize ? buffer.clone() : Arrays.copyOf(buffer, readByte);
+                String encoded = sha256(block);
                 res.add(encoded);
-                map.put(encoded, buffer.clone());
+                map.put(encoded, block);
             }
-        } catch (IOException e){
-            throw e;
         }
+        hashlistTimer.stop(start);
         return res;
     }
 
+    //block size of a FileInfo, which is 0 for files written before it was recorded
+    public static int blockSizeOf(int recorded) {
+        return recorded == 0 ? DEFAULT_BLOCK_SIZE : recorded;
+    }
+
+    public static void checkBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + ": " + blockSize);
+        }
+    }
+
+    //fill the buffer unless the stream ends first, returns the number of bytes read
+    static int readBlock(InputStream is, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = is.read(buffer, total, buffer.length - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
     public static void main(String[] args) throws Exception{
         System.out.println(HashUtils.sha256(new String("Are you ready?").getBytes(StandardCharsets.UTF_8)));
         Map<String, byte[]> map = new HashMap<>();
@@ -0,0 +1,289 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Drives N concurrent Clients against a running cluster and reports
+ * throughput, latency percentiles and the dedup ratio of the uploads.
+ *
+ * Each operation is a download of a file some client uploaded (read mix),
+ * an edit of one of the client's own files, or a new file. New files reuse
+ * blocks from a shared corpus with probability --overlap, which is what the
+ * dedup ratio measures.
+ */
+public final class LoadGenerator {
+    //bytes of shared blocks new files draw from, at least MIN_CORPUS_BLOCKS blocks
+    private static final int CORPUS_BYTES = 4 << 20;
+    private static final int MIN_CORPUS_BLOCKS = 16;
+
+    private final ConfigReader config;
+    private final Namespace c_args;
+    private final SizeDistribution sizes;
+    private final File workDir;
+    //block size the clients upload with; corpus blocks and edits are aligned to it
+    private final int blockSize;
+    private final byte[][] corpus;
+    //files uploaded by any client, used as download targets
+    private final List<String> uploaded = new CopyOnWriteArrayList<>();
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Metrics.Timer uploadTimer = Metrics.timer("load.upload");
+    private final Metrics.Timer downloadTimer = Metrics.timer("load.download");
+
+    LoadGenerator(ConfigReader config, Namespace c_args) throws IOException {
+        this.config = config;
+        this.c_args = c_args;
+        this.sizes = SizeDistribution.parse(c_args.getString("sizes"));
+        this.workDir = Files.createTempDirectory("surfstore-load").toFile();
+        Integer blockSize = c_args.getInt("block_size");
+        this.blockSize = blockSize == null ? config.getBlockSize() : blockSize;
+        HashUtils.checkBlockSize(this.blockSize);
+
+        Random random = new Random(c_args.getLong("seed"));
+        corpus = new byte[Math.max(MIN_CORPUS_BLOCKS, CORPUS_BYTES / this.blockSize)][this.blockSize];
+        for (byte[] block : corpus) {
+            random.nextBytes(block);
+        }
+    }
+
+    private void run() throws Exception {
+        int numClients = c_args.getInt("clients");
+        ExecutorService pool = Executors.newFixedThreadPool(numClients);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numClients; i++) {
+            final int id = i;
+            results.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    runClient(id);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        report(numClients, seconds);
+        deleteRecursively(workDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void runClient(int id) throws IOException, InterruptedException {
+        Random random = new Random(c_args.getLong("seed") + id + 1);
+        File dir = new File(workDir, "client" + id);
+        File downDir = new File(dir, "download");
+        downDir.mkdirs();
+        List<File> ownFiles = new ArrayList<>();
+
+        Client client = new Client(config, blockSize, new File(dir, ".surfstore"));
+        try {
+            for (int op = 0; op < c_args.getInt("operations"); op++) {
+                try {
+                    if (!uploaded.isEmpty() && random.nextDouble() < c_args.getDouble("read_ratio")) {
+                        String name = uploaded.get(random.nextInt(uploaded.size()));
+                        long start = downloadTimer.start();
+                        client.download(name, downDir.getPath());
+                        downloadTimer.stop(start);
+                        continue;
+                    }
+
+                    File file;
+                    if (!ownFiles.isEmpty() && random.nextDouble() < c_args.getDouble("edit_ratio")) {
+                        file = ownFiles.get(random.nextInt(ownFiles.size()));
+                        editFile(file, random);
+                    } else {
+                        file = new File(dir, "load-c" + id + "-" + ownFiles.size() + ".bin");
+                        writeFile(file, sizes.next(random), random);
+                        ownFiles.add(file);
+                    }
+                    long start = uploadTimer.start();
+                    client.upLoad(file.getPath());
+                    uploadTimer.stop(start);
+                    logicalBytes.addAndGet(file.length());
+                    if (!uploaded.contains(file.getName())) {
+                        uploaded.add(file.getName());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures.incrementAndGet();
+                    System.err.println("operation failed: " + e);
+                }
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    //new file of the given size, each block taken from the corpus with probability --overlap
+    private void writeFile(File file, long size, Random random) throws IOException {
+        double overlap = c_args.getDouble("overlap");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            byte[] fresh = new byte[blockSize];
+            for (long written = 0; written < size; written += blockSize) {
+                int len = (int) Math.min(blockSize, size - written);
+                byte[] block;
+                if (random.nextDouble() < overlap) {
+                    block = corpus[random.nextInt(corpus.length)];
+                } else {
+                    random.nextBytes(fresh);
+                    block = fresh;
+                }
+                raf.write(block, 0, len);
+            }
+        }
+    }
+
+    //overwrite one block-aligned block with fresh bytes, so the rest dedups
+    private void editFile(File file, Random random) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long blocks = Math.max(1, (raf.length() + blockSize - 1) / blockSize);
+            long offset = (long) random.nextInt((int) Math.min(blocks, Integer.MAX_VALUE)) * blockSize;
+            byte[] data = new byte[(int) Math.min(blockSize, Math.max(1, raf.length() - offset))];
+            random.nextBytes(data);
+            raf.seek(offset);
+            raf.write(data);
+        }
+    }
+
+    private void report(int numClients, double seconds) {
+        long ops = uploadTimer.getCount() + downloadTimer.getCount();
+        System.out.println(String.format("clients=%d ops=%d failures=%d elapsed_s=%.2f throughput_ops_s=%.1f",
+                numClients, ops, failures.get(), seconds, ops / seconds));
+        printLatency("upload", uploadTimer);
+        printLatency("download", downloadTimer);
+
+        //file data that actually left the clients: StoreBlock bytes as counted by the client
+        //interceptor, plus small files sent inline with ModifyFile
+        long blocks = Metrics.timer("rpc.client.surfstore.BlockStore/StoreBlock").getBytesOut();
+        long inline = Metrics.counter("client.inline_bytes").get();
+        long stored = blocks + inline;
+        System.out.println(String.format("logical_bytes=%d stored_bytes=%d block_bytes=%d inline_bytes=%d dedup_ratio=%.2f",
+                logicalBytes.get(), stored, blocks, inline, stored == 0 ? 0.0 : (double) logicalBytes.get() / stored));
+    }
+
+    private static void printLatency(String name, Metrics.Timer timer) {
+        Histogram h = timer.snapshot();
+        System.out.println(String.format("%-8s count=%d p50_ms=%.3f p99_ms=%.3f p999_ms=%.3f max_ms=%.3f",
+                name, timer.getCount(),
+                h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                h.getValueAtPercentile(99.9) / 1e6, h.getMaxValue() / 1e6));
+    }
+
+    /**
+     * File size distribution: "fixed:N", "uniform:MIN:MAX" or "exp:MEAN", in bytes.
+     */
+    static final class SizeDistribution {
+        private final String kind;
+        private final long a;
+        private final long b;
+
+        private SizeDistribution(String kind, long a, long b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed":
+                    if (parts.length == 2)
+                        return new SizeDistribution("fixed", Long.parseLong(parts[1]), 0);
+                    break;
+                case "uniform":
+                    if (parts.length == 3)
+                        return new SizeDistribution("uniform", Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                    break;
+                case "exp":
+                    if (parts.length == 2)
+                        return new SizeDistribution("exp", Long.parseLong(parts[1]), 0);
+                    break;
+            }
+            throw new IllegalArgumentException("Invalid size distribution: " + spec);
+        }
+
+        long next(Random random) {
+            switch (kind) {
+                case "uniform":
+                    return a + (long) (random.nextDouble() * (b - a + 1));
+                case "exp":
+                    return Math.max(1, (long) (-a * Math.log(1 - random.nextDouble())));
+                default:
+                    return a;
+            }
+        }
+    }
+
+    private static Namespace parseArgs(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("LoadGenerator").build()
+                .description("Load generator for SurfStore");
+        parser.addArgument("config_file").type(String.class)
+                .help("Path to configuration file");
+        parser.addArgument("-c", "--clients").type(Integer.class).setDefault(8)
+                .help("Number of concurrent clients");
+        parser.addArgument("-n", "--operations").type(Integer.class).setDefault(100)
+                .help("Operations per client");
+        parser.addArgument("--sizes").type(String.class).setDefault("exp:65536")
+                .help("File size distribution: fixed:N, uniform:MIN:MAX or exp:MEAN (bytes)");
+        parser.addArgument("--read-ratio").type(Double.class).setDefault(0.5)
+                .help("Fraction of operations that download a file");
+        parser.addArgument("--edit-ratio").type(Double.class).setDefault(0.5)
+                .help("Fraction of uploads that edit one block of an existing file");
+        parser.addArgument("--overlap").type(Double.class).setDefault(0.2)
+                .help("Probability that a block of a new file repeats an existing block");
+        parser.addArgument("-b", "--block-size").type(Integer.class)
+                .help("Block size for uploads, corpus blocks and edits (default: blocksize from the config file, or 4096)");
+        parser.addArgument("--seed").type(Long.class).setDefault(1L)
+                .help("Random seed");
+
+        Namespace res = null;
+        try {
+            res = parser.parseArgs(args);
+        } catch (ArgumentParserException e){
+            parser.handleError(e);
+        }
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Namespace c_args = parseArgs(args);
+        if (c_args == null){
+            throw new RuntimeException("Argument parsing failed");
+        }
+
+        File configf = new File(c_args.getString("config_file"));
+        ConfigReader config = new ConfigReader(configf);
+
+        new LoadGenerator(config, c_args).run();
+    }
+}
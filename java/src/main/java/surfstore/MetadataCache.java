@@ -0,0 +1,117 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import surfstore.SurfStoreBasic.FileInfo;
+
+/**
+ * Client-side copy of the last FileInfo seen for each file, so ReadFile can
+ * be conditional on the cached version.
+ *
+ * Entries are only hints: the server confirms a cached copy (same version
+ * and store_id) before it is used. The cache is written on save() as a
+ * sequence of length-delimited FileInfo messages, replacing the old file
+ * atomically. A null file keeps the cache in memory only.
+ */
+final class MetadataCache {
+    private static final Logger logger = Logger.getLogger(MetadataCache.class.getName());
+
+    private final File file;
+    private final Map<String, FileInfo> entries = new HashMap<>();
+    private boolean dirty;
+
+    MetadataCache(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    private void load() {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            FileInfo fi;
+            while ((fi = FileInfo.parseDelimitedFrom(is)) != null) {
+                entries.put(fi.getFilename(), fi);
+            }
+        } catch (IOException e) {
+            //a broken cache only costs full reads
+            logger.warning("Ignoring metadata cache " + file + ": " + e);
+            entries.clear();
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+            for (FileInfo fi : entries.values()) {
+                fi.writeDelimitedTo(os);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    //cached copy of the file, or null
+    synchronized FileInfo get(String filename) {
+        return entries.get(filename);
+    }
+
+    //ReadFile request for the file, conditional when a copy is cached
+    synchronized FileInfo request(String filename) {
+        FileInfo.Builder builder = FileInfo.newBuilder().setFilename(filename);
+        FileInfo cached = entries.get(filename);
+        if (cached != null) {
+            builder.setKnownVersion(cached.getVersion()).setStoreId(cached.getStoreId());
+        }
+        return builder.build();
+    }
+
+    //full FileInfo for a ReadFile reply, taken from or patched onto the cache when it
+    //is a not-modified or delta reply. null if the cached copy changed while the request was in flight
+    synchronized FileInfo resolve(FileInfo reply) {
+        if (reply.getNotModified()) {
+            FileInfo cached = entries.get(reply.getFilename());
+            return cached != null && cached.getVersion() == reply.getVersion() ? cached : null;
+        }
+        //edits against the cached copy
+        if (reply.getBaseVersion() != 0) {
+            FileInfo cached = entries.get(reply.getFilename());
+            if (cached == null || cached.getVersion() != reply.getBaseVersion()) {
+                return null;
+            }
+            FileInfo full = reply.toBuilder().clearBaseVersion().clearEdits()
+                    .addAllBlocklist(BlockList.of(cached.getBlocklistList()).apply(reply.getEditsList())).build();
+            put(full);
+            return full;
+        }
+        if (reply.getVersion() == 0) {
+            if (entries.remove(reply.getFilename()) != null) {
+                dirty = true;
+            }
+        } else {
+            put(reply);
+        }
+        return reply;
+    }
+
+    //record a copy the client just wrote; fi must carry the store_id of the write
+    synchronized void put(FileInfo fi) {
+        entries.put(fi.getFilename(), fi.toBuilder().clearKnownVersion().clearNotModified().clearInlineData().build());
+        dirty = true;
+    }
+}
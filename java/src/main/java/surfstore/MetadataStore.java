@@ -2,16 +2,34 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -24,25 +42,31 @@ public final class MetadataStore {
 
     protected Server server;
 	protected ConfigReader config;
+	protected ServerOptions options;
 
     public MetadataStore(ConfigReader config) {
     	this.config = config;
 	}
 
-	private void start(int port, int numThreads, int leader) throws IOException {
+	private void start(int port, ServerOptions options, int number) throws IOException {
         MetadataStoreImpl mds;
-        if(config.getLeaderNum() == leader) {
-            this.config.metadataPorts.remove(leader);
-            mds = new MetadataStoreImpl(this.config.blockPort, this.config.metadataPorts);
+        //each replication group has its own leader and owns part of the namespace
+        int group = config.getGroupOf(number);
+        int leader = config.getGroupLeader(group);
+        if(number == leader) {
+            Map<Integer, Integer> followerPorts = new HashMap<>();
+            for(int id: config.getGroupMembers(group)){
+                if(id != number)
+                    followerPorts.put(id, config.getMetadataPort(id));
+            }
+            mds = new MetadataStoreImpl(this.config.blockPort, followerPorts);
         } else {
-            mds = new MetadataStoreImpl(this.config.blockPort, this.config.metadataPorts.get(config.getLeaderNum()));
-        }
-        server = ServerBuilder.forPort(port)
-                .addService(mds)
-                .executor(Executors.newFixedThreadPool(numThreads))
-                .build()
-                .start();
-        logger.info("Server started, listening on " + port);
+            mds = new MetadataStoreImpl(this.config.blockPort, config.getMetadataPort(leader));
+        }
+        mds.maxInlineSize = config.getInlineSize();
+        this.options = options;
+        server = options.start(port, mds);
+        logger.info("Server started, listening on " + port + " (group " + group + ", leader metadata" + leader + ")");
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -57,6 +81,9 @@ public final class MetadataStore {
         if (server != null) {
             server.shutdown();
         }
+        if (options != null) {
+            options.shutdown();
+        }
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -72,8 +99,7 @@ public final class MetadataStore {
                 .help("Path to configuration file");
         parser.addArgument("-n", "--number").type(Integer.class).setDefault(1)
                 .help("Set which number this server is");
-        parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
-                .help("Maximum number of concurrent threads");
+        ServerOptions.addArguments(parser);
 
         Namespace res = null;
         try {
@@ -98,53 +124,124 @@ public final class MetadataStore {
         }
 
         final MetadataStore server = new MetadataStore(config);
-        server.start(config.getMetadataPort(c_args.getInt("number")), c_args.getInt("threads"),
+        server.start(config.getMetadataPort(c_args.getInt("number")), new ServerOptions(c_args),
                 c_args.getInt("number"));
         server.blockUntilShutdown();
     }
 
     static class MetadataStoreImpl extends MetadataStoreGrpc.MetadataStoreImplBase {
 
-        Map<String, Integer> file_versionMap;
-        Map<String, List<String>> file_blocklistMap;
+        //committed state per file, replaced as a whole so a reader never mixes two versions
+        Map<String, FileRecord> file_recordMap;
+        //a few earlier blocklists per file, to answer ReadFile with a delta
+        Map<String, Map<Integer, List<String>>> file_historyMap;
         List<FileInfo> logList;
         private final boolean isLeader;
-        private final BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+        private final BlockStoreGrpc.BlockStoreFutureStub blockStub;
+        //blocking stubs are only used by the catch-up path in update()
         private List<MetadataStoreGrpc.MetadataStoreBlockingStub> followers;
-        private MetadataStoreGrpc.MetadataStoreBlockingStub leader;
-        private boolean crashed;
+        private List<MetadataStoreGrpc.MetadataStoreFutureStub> asyncFollowers;
+        private MetadataStoreGrpc.MetadataStoreFutureStub leader;
+        private volatile boolean crashed;
         private int commitedIndex;
+        //versions that are in the log but not committed yet
+        private final Map<String, Integer> pendingVersionMap;
+        //replication rounds are chained so followers receive log entries in leader order
+        private ListenableFuture<Boolean> replicationTail;
+        private ExecutorService catchUpExecutor;
+        private final Metrics.Timer blockLookupTimer = Metrics.timer("metadata.block_lookup");
+        private final Metrics.Timer replicationTimer = Metrics.timer("metadata.replication");
+        //existing files in name order, for ListFiles
+        private final NamespaceIndex namespace = new NamespaceIndex();
+        //identifies this incarnation of the (in-memory) store for conditional reads
+        private final long storeId = new SecureRandom().nextLong();
+        //committed changes for Watch subscribers, numbered within this storeId
+        private final ChangeFeed changeFeed = new ChangeFeed(storeId);
+        //largest inline_data accepted in a write, from the config
+        int maxInlineSize = HashUtils.DEFAULT_INLINE_SIZE;
+        //earlier versions kept per file for ReadFile deltas
+        private static final int HISTORY = 4;
+
+        /**
+         * Committed version, blocklist and block size of one file. Records are
+         * immutable; a commit replaces the whole record.
+         */
+        static final class FileRecord {
+            final int version;
+            //a BlockList, so versions of a file share unchanged chunks
+            final List<String> blocklist;
+            //block size the file was written with, as recorded in its FileInfo
+            final int blockSize;
+
+            FileRecord(int version, List<String> blocklist, int blockSize) {
+                this.version = version;
+                this.blocklist = blocklist;
+                this.blockSize = blockSize;
+            }
+
+            //a deleted file is stored as the single hash "0"
+            boolean isDeleted() {
+                return blocklist.size() == 1 && blocklist.get(0).equals("0");
+            }
+        }
 
         MetadataStoreImpl(int blockPort, int leaderPort){
+            this(localChannel(blockPort), localChannel(leaderPort));
+        }
+
+        MetadataStoreImpl(int blockPort, Map<Integer, Integer> mdsPort){
+            this(localChannel(blockPort), localChannels(mdsPort.values()));
+        }
+
+        //follower
+        MetadataStoreImpl(Channel blockChannel, Channel leaderChannel){
             super();
-            blockStub=BlockStoreGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", blockPort)
-                    .usePlaintext(true).build());
-            leader = MetadataStoreGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", leaderPort)
-                    .usePlaintext(true).build());
-            file_versionMap=new HashMap<>();
-            file_blocklistMap=new HashMap<>();
+            blockStub=BlockStoreGrpc.newFutureStub(blockChannel);
+            leader = MetadataStoreGrpc.newFutureStub(leaderChannel);
+            file_recordMap=new ConcurrentHashMap<>();
+            file_historyMap=new ConcurrentHashMap<>();
             logList = new ArrayList<>();
+            pendingVersionMap = new HashMap<>();
             this.isLeader = false;
             this.crashed = false;
             followers = null;
+            asyncFollowers = null;
         }
 
-        MetadataStoreImpl(int blockPort, Map<Integer, Integer> mdsPort){
+        //leader
+        MetadataStoreImpl(Channel blockChannel, List<? extends Channel> followerChannels){
             super();
-            blockStub=BlockStoreGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", blockPort)
-                    .usePlaintext(true).build());
+            blockStub=BlockStoreGrpc.newFutureStub(blockChannel);
 
-            file_versionMap=new HashMap<>();
-            file_blocklistMap=new HashMap<>();
+            file_recordMap=new ConcurrentHashMap<>();
+            file_historyMap=new ConcurrentHashMap<>();
             logList = new ArrayList<>();
+            pendingVersionMap = new HashMap<>();
             this.isLeader = true;
             this.crashed = false;
             followers = new ArrayList<>();
+            asyncFollowers = new ArrayList<>();
+
+            for(Channel channel: followerChannels){
+                followers.add(MetadataStoreGrpc.newBlockingStub(channel));
+                asyncFollowers.add(MetadataStoreGrpc.newFutureStub(channel));
+            }
+            replicationTail = Futures.immediateFuture(true);
+            catchUpExecutor = Executors.newSingleThreadExecutor();
+        }
 
-            for(Integer port: mdsPort.values()){
-                followers.add(MetadataStoreGrpc.newBlockingStub(ManagedChannelBuilder.forAddress("127.0.0.1", port)
-                        .usePlaintext(true).build()));
+        private static ManagedChannel localChannel(int port) {
+            return ManagedChannelBuilder.forAddress("127.0.0.1", port)
+                    .usePlaintext(true).maxInboundMessageSize(ServerOptions.MAX_MESSAGE_SIZE)
+                    .intercept(MetricsInterceptor.INSTANCE, RetryInterceptor.INSTANCE).build();
+        }
+
+        private static List<ManagedChannel> localChannels(Collection<Integer> ports) {
+            List<ManagedChannel> channels = new ArrayList<>();
+            for(Integer port: ports){
+                channels.add(localChannel(port));
             }
+            return channels;
         }
 
         @Override
@@ -163,91 +260,274 @@ public final class MetadataStore {
         @Override
         public void readFile(surfstore.SurfStoreBasic.FileInfo request,
                              io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfo> responseObserver) {
+            respond(responseObserver, lookup(request));
+        }
+
+        /**
+         * Read many files in one call, each as in readFile.
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void readFiles(surfstore.SurfStoreBasic.FileInfoList request,
+                              io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfoList> responseObserver) {
+            FileInfoList.Builder builder = FileInfoList.newBuilder();
+            for(FileInfo fi: request.getFilesList()){
+                builder.addFiles(lookup(fi));
+            }
+            respond(responseObserver, builder.build());
+        }
+
+        private FileInfo lookup(FileInfo request) {
             FileInfo.Builder builder=FileInfo.newBuilder();
 
             builder.setFilename(request.getFilename());
-            logger.info("file name: " + request.getFilename());
+            builder.setStoreId(storeId);
+            //read once: every field of the reply comes from the same committed version
+            FileRecord current = file_recordMap.get(request.getFilename());
+            //the client's copy is current, skip the blocklist
+            if(current != null && request.getKnownVersion() == current.version && request.getStoreId() == storeId){
+                builder.setVersion(current.version);
+                builder.setNotModified(true);
+            }
+            //the client has an older copy we still remember, send only the changes
+            else if(current != null && request.getStoreId() == storeId && deltaFrom(request, current, builder)){
+                builder.setVersion(current.version);
+            }
             //file never exist
-            if(!file_versionMap.containsKey(request.getFilename())){
+            else if(current == null){
                 builder.setVersion(0);
             }
             //file has been deleted
-            else if(file_blocklistMap.containsKey(request.getFilename())&&
-                    file_blocklistMap.get(request.getFilename()).size()==1&&
-                    file_blocklistMap.get(request.getFilename()).get(0).equals("0")){
-                builder.setVersion(file_versionMap.get(request.getFilename()));
-                builder.addAllBlocklist(file_blocklistMap.get(request.getFilename()));
+            else if(current.isDeleted()){
+                builder.setVersion(current.version);
+                builder.addAllBlocklist(current.blocklist);
             }
             //file exist
             else{
-                builder.setVersion(file_versionMap.get(request.getFilename()));
-                builder.addAllBlocklist(file_blocklistMap.get(request.getFilename()));
+                builder.setVersion(current.version);
+                builder.addAllBlocklist(current.blocklist);
+                builder.setBlockSize(current.blockSize);
+            }
+            return builder.build();
+        }
+
+        //fill in base_version and edits from the client's known version, if that is cheaper
+        private boolean deltaFrom(FileInfo request, FileRecord current, FileInfo.Builder builder) {
+            List<String> known = history(request.getFilename(), request.getKnownVersion());
+            if(known == null)
+                return false;
+            List<BlockEdit> edits = BlockList.diff(known, current.blocklist);
+            if(!BlockList.worthSending(edits, current.blocklist.size()))
+                return false;
+            builder.setBaseVersion(request.getKnownVersion());
+            builder.addAllEdits(edits);
+            builder.setBlockSize(current.blockSize);
+            return true;
+        }
+
+        private List<String> history(String filename, int version) {
+            Map<Integer, List<String>> versions = file_historyMap.get(filename);
+            if(versions == null)
+                return null;
+            synchronized (versions) {
+                return versions.get(version);
             }
-            FileInfo response=builder.build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
         }
 
         /**
-         * Write a file
+         * Write a file. The handler does not block: the hasBlock checks and the
+         * replication round complete the response from future callbacks.
          * @param request
          * @param responseObserver
          */
         @Override
-        public void modifyFile(surfstore.SurfStoreBasic.FileInfo request,
-                               io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResult> responseObserver){
-            WriteResult.Builder builder=WriteResult.newBuilder();
+        public void modifyFile(final surfstore.SurfStoreBasic.FileInfo request,
+                               final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResult> responseObserver){
+            if(!checkWrite(request, responseObserver))
+                return;
+            respondFirst(write(Collections.singletonList(request)), responseObserver);
+        }
 
-            if(!isLeader)
-                builder.setResultValue(3);
-            else {
-                //version wrong
-                int version = file_versionMap.getOrDefault(request.getFilename(), 0);
-                builder.setCurrentVersion(version);
-                if(request.getVersion() != version+1)
-                    builder.setResultValue(1);
-                else {
-                    List<String> missing_block=new ArrayList<>();
-                    for(int i=0;i<request.getBlocklistList().size();i++){
-                        String hash=request.getBlocklist(i);
-                        Block block_checking=Block.newBuilder().setHash(hash).build();
-                        SimpleAnswer ans=blockStub.hasBlock(block_checking);
-                        if(!ans.getAnswer()){
-                            missing_block.add(hash);
-                        }
-                    }
+        /**
+         * Write many files in one call. Files that pass their checks are
+         * replicated as a single log batch.
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void modifyFiles(surfstore.SurfStoreBasic.FileInfoList request,
+                                final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResultList> responseObserver){
+            for(FileInfo fi: request.getFilesList()){
+                if(!checkWrite(fi, responseObserver))
+                    return;
+            }
+            Futures.addCallback(write(request.getFilesList()), new FutureCallback<List<WriteResult>>() {
+                @Override
+                public void onSuccess(List<WriteResult> results) {
+                    respond(responseObserver, WriteResultList.newBuilder().addAllResults(results).build());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(t);
+                }
+            });
+        }
+
+        //reject malformed writes with INVALID_ARGUMENT
+        private boolean checkWrite(FileInfo fi, StreamObserver<?> responseObserver) {
+            String problem = null;
+            if(fi.getBlockSize() < 0 || fi.getBlockSize() > HashUtils.MAX_BLOCK_SIZE)
+                problem = "Invalid block size " + fi.getBlockSize();
+            //inline data must be the file's only block, and small
+            else if(fi.getInlineData().size() > maxInlineSize)
+                problem = "Inline data larger than " + maxInlineSize + " bytes";
+            else if(!fi.getInlineData().isEmpty() && (fi.getBlocklistCount() != 1
+                    || !HashUtils.sha256(fi.getInlineData().toByteArray()).equals(fi.getBlocklist(0))))
+                problem = "Inline data does not match the blocklist";
+            else if(isDelta(fi) && (fi.getBlocklistCount() != 0 || fi.getEditsCount() > BlockList.MAX_EDITS))
+                problem = "A delta needs edits (at most " + BlockList.MAX_EDITS + ") and no blocklist";
+            if(problem != null){
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(problem).asRuntimeException());
+                return false;
+            }
+            return true;
+        }
+
+        private static boolean isDelta(FileInfo fi) {
+            return fi.getBaseVersion() != 0;
+        }
+
+        //hashes a write adds to the file: the edits of a delta, or the whole blocklist
+        private static List<String> newHashes(FileInfo fi) {
+            if(!isDelta(fi))
+                return fi.getBlocklistList();
+            List<String> hashes = new ArrayList<>();
+            for(BlockEdit edit: fi.getEditsList()){
+                hashes.addAll(edit.getHashesList());
+            }
+            return hashes;
+        }
+
+        //store inline data in the BlockStore; the block is present once this completes
+        private ListenableFuture<SimpleAnswer> storeInline(FileInfo fi) {
+            Block block = Block.newBuilder().setHash(fi.getBlocklist(0)).setData(fi.getInlineData()).build();
+            return Futures.transform(blockStub.storeBlock(block), new Function<Empty, SimpleAnswer>() {
+                @Override
+                public SimpleAnswer apply(Empty empty) {
+                    return SimpleAnswer.newBuilder().setAnswer(true).build();
+                }
+            });
+        }
+
+        private static boolean isDelete(FileInfo fi) {
+            return fi.getBlocklistCount() == 1 && fi.getBlocklist(0).equals("0");
+        }
+
+        //version check, then one hasBlock per distinct hash of the batch, then one replication round
+        private ListenableFuture<List<WriteResult>> write(final List<FileInfo> files) {
+            final WriteResult[] results = new WriteResult[files.size()];
+            if(!isLeader){
+                Arrays.fill(results, WriteResult.newBuilder().setResultValue(3).build());
+                return Futures.immediateFuture(Arrays.asList(results));
+            }
+            final int[] versions = new int[files.size()];
+            final Map<String, ListenableFuture<SimpleAnswer>> checks = new LinkedHashMap<>();
+            for(int i=0;i<files.size();i++){
+                FileInfo fi = files.get(i);
+                versions[i] = latestVersion(fi.getFilename());
+                //version wrong, or a delta against anything but the latest version
+                if(fi.getVersion() != versions[i]+1 || (isDelta(fi) && fi.getBaseVersion() != versions[i])){
+                    results[i] = WriteResult.newBuilder().setResultValue(1).setCurrentVersion(versions[i]).build();
+                    continue;
+                }
+                if(isDelete(fi))
+                    continue;
+                if(!fi.getInlineData().isEmpty()){
+                    //the data came with the write: store it rather than ask whether it is there
+                    checks.put(fi.getBlocklist(0), storeInline(fi));
+                    continue;
+                }
+                for(String hash: newHashes(fi)){
+                    if(!checks.containsKey(hash))
+                        checks.put(hash, blockStub.hasBlock(Block.newBuilder().setHash(hash).build()));
+                }
+            }
+
+            //ask the BlockStore about all blocks at once instead of one round trip per block
+            final long lookupStart = blockLookupTimer.start();
+            final List<String> hashes = new ArrayList<>(checks.keySet());
+            ListenableFuture<List<SimpleAnswer>> answers = Futures.allAsList(checks.values());
+            Futures.addCallback(answers, new FutureCallback<List<SimpleAnswer>>() {
+                @Override
+                public void onSuccess(List<SimpleAnswer> result) {
+                    blockLookupTimer.stop(lookupStart);
+                }
 
-                    //missing block
-                    if(missing_block.size()!=0){
-                        builder.setResultValue(2);
-                        builder.addAllMissingBlocks(missing_block);
+                @Override
+                public void onFailure(Throwable t) {
+                    blockLookupTimer.stop(lookupStart, false);
+                }
+            });
+            return Futures.transformAsync(answers, new AsyncFunction<List<SimpleAnswer>, List<WriteResult>>() {
+                @Override
+                public ListenableFuture<List<WriteResult>> apply(List<SimpleAnswer> answers) {
+                    Set<String> missing = new HashSet<>();
+                    for(int i=0;i<answers.size();i++){
+                        if(!answers.get(i).getAnswer())
+                            missing.add(hashes.get(i));
                     }
-                    else{
-                        //ok
-                        logList.add(FileInfo.newBuilder(request).build());
-                        int vote = 0;
-                        for(MetadataStoreGrpc.MetadataStoreBlockingStub follower:followers){
-                            if(follower.log(FileInfo.newBuilder(request).build()).getAnswer())
-                                vote++;
-                        }
-                        if(vote >= followers.size()/2) {
-                            builder.setResultValue(0);
-                            builder.setCurrentVersion(request.getVersion());
-                            file_versionMap.put(request.getFilename(), request.getVersion());
-                            file_blocklistMap.put(request.getFilename(), request.getBlocklistList());
-                            commitedIndex = logList.size();
-                            logger.info("Metadata store modification successful. New version number is: " + request.getVersion());
-                            for(MetadataStoreGrpc.MetadataStoreBlockingStub follower:followers){
-                                follower.commit(Index.newBuilder().setIndex(logList.size()).build());
+
+                    final List<Integer> positions = new ArrayList<>();
+                    List<FileInfo> accepted = new ArrayList<>();
+                    for(int i=0;i<files.size();i++){
+                        if(results[i] != null)
+                            continue;
+                        FileInfo fi = files.get(i);
+                        List<String> missing_block=new ArrayList<>();
+                        if(!isDelete(fi)){
+                            for(String hash: newHashes(fi)){
+                                if(missing.contains(hash))
+                                    missing_block.add(hash);
                             }
                         }
+                        //missing block
+                        if(missing_block.size()!=0){
+                            results[i] = WriteResult.newBuilder().setResultValue(2)
+                                    .setCurrentVersion(versions[i]).addAllMissingBlocks(missing_block).build();
+                        } else {
+                            positions.add(i);
+                            //the data is in the BlockStore now, keep it out of the log
+                            accepted.add(fi.getInlineData().isEmpty() ? fi : fi.toBuilder().clearInlineData().build());
+                        }
                     }
+                    return Futures.transform(replicate(accepted), new Function<List<WriteResult>, List<WriteResult>>() {
+                        @Override
+                        public List<WriteResult> apply(List<WriteResult> replicated) {
+                            for(int j=0;j<replicated.size();j++){
+                                results[positions.get(j)] = replicated.get(j);
+                            }
+                            return Arrays.asList(results);
+                        }
+                    });
                 }
-            }
+            });
+        }
 
-            WriteResult response=builder.build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+        private static void respondFirst(ListenableFuture<List<WriteResult>> results,
+                                         final StreamObserver<WriteResult> responseObserver) {
+            Futures.addCallback(results, new FutureCallback<List<WriteResult>>() {
+                @Override
+                public void onSuccess(List<WriteResult> result) {
+                    respond(responseObserver, result.get(0));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(t);
+                }
+            });
         }
 
         /**
@@ -262,41 +542,221 @@ public final class MetadataStore {
 
             if(!isLeader){
                 builder.setResultValue(3);
-            } else {
+            } else if(file_recordMap.containsKey(request.getFilename())) {
                 //version wrong
-                if(file_versionMap.containsKey(request.getFilename())) {
-                    int version = file_versionMap.get(request.getFilename());
-                    builder.setCurrentVersion(version);
-                    if (request.getVersion() != version + 1)
-                        builder.setResultValue(1);
-                    else {
-                        //2PC
-                        List<String> temp=new ArrayList<>();
-                        temp.add("0");
-                        logList.add(FileInfo.newBuilder(request).addAllBlocklist(temp).build());
-                        int vote = 0;
-                        for(MetadataStoreGrpc.MetadataStoreBlockingStub follower:followers){
-                            if(follower.log(FileInfo.newBuilder(request).build()).getAnswer())
-                                vote++;
-                        }
-                        if(vote >= followers.size()/2){
+                int version = latestVersion(request.getFilename());
+                builder.setCurrentVersion(version);
+                if (request.getVersion() != version + 1)
+                    builder.setResultValue(1);
+                else {
+                    //2PC, a deleted file is stored as the single hash "0"
+                    respondFirst(replicate(Collections.singletonList(
+                            FileInfo.newBuilder(request).clearBlocklist().addBlocklist("0").build())),
+                            responseObserver);
+                    return;
+                }
+            }
+
+            respond(responseObserver, builder.build()); //why don't we delete blocks in blockstore?
+        }
+
+        /**
+         * Append the entries to the log and replicate them to the followers as
+         * one round, after every earlier round. Entries whose version is stale
+         * by now get OLD_VERSION and are left out.
+         */
+        private ListenableFuture<List<WriteResult>> replicate(List<FileInfo> entries) {
+            final WriteResult[] results = new WriteResult[entries.size()];
+            final int[] versions = new int[entries.size()];
+            final List<Integer> positions = new ArrayList<>();
+            final List<FileInfo> logged = new ArrayList<>();
+            final ListenableFuture<Boolean> round;
+            synchronized (this) {
+                for(int i=0;i<entries.size();i++){
+                    FileInfo entry = entries.get(i);
+                    versions[i] = latestVersion(entry.getFilename());
+                    //another write of this version got into the log first; a delta also
+                    //needs its base committed so it can be checked against it
+                    if(entry.getVersion() != versions[i]+1 || (isDelta(entry) && !deltaApplies(entry))){
+                        results[i] = WriteResult.newBuilder().setResultValue(1).setCurrentVersion(versions[i]).build();
+                        continue;
+                    }
+                    logList.add(entry);
+                    pendingVersionMap.put(entry.getFilename(), entry.getVersion());
+                    positions.add(i);
+                    logged.add(entry);
+                }
+                if(logged.isEmpty())
+                    return Futures.immediateFuture(Arrays.asList(results));
+                final int index = logList.size();
+                round = Futures.transformAsync(replicationTail, new AsyncFunction<Boolean, Boolean>() {
+                    @Override
+                    public ListenableFuture<Boolean> apply(Boolean previous) {
+                        return replicateRound(logged, index);
+                    }
+                });
+                replicationTail = neverFailing(round);
+            }
+
+            return Futures.transform(round, new Function<Boolean, List<WriteResult>>() {
+                @Override
+                public List<WriteResult> apply(Boolean committed) {
+                    for(int j=0;j<positions.size();j++){
+                        int i = positions.get(j);
+                        WriteResult.Builder builder = WriteResult.newBuilder();
+                        if(committed){
                             builder.setResultValue(0);
-                            builder.setCurrentVersion(request.getVersion());
-                            file_versionMap.put(request.getFilename(),request.getVersion());
-                            file_blocklistMap.put(request.getFilename(),temp);
-                            commitedIndex = logList.size();
-                            for(MetadataStoreGrpc.MetadataStoreBlockingStub follower:followers){
-                                follower.commit(Index.newBuilder().setIndex(logList.size()).build());
-                            }
+                            builder.setCurrentVersion(logged.get(j).getVersion());
+                        } else {
+                            builder.setCurrentVersion(versions[i]);
+                        }
+                        results[i] = builder.build();
+                    }
+                    return Arrays.asList(results);
+                }
+            });
+        }
+
+        //2PC round for the entries ending at log index: log on all followers in parallel, commit on quorum
+        private ListenableFuture<Boolean> replicateRound(final List<FileInfo> entries, final int index) {
+            final long start = replicationTimer.start();
+            List<ListenableFuture<SimpleAnswer>> votes = new ArrayList<>();
+            FileInfoList batch = FileInfoList.newBuilder().addAllFiles(entries).build();
+            //rounds run in whatever call context finished the previous round; fork so
+            //that call completing does not cancel this round's follower RPCs, and keep
+            //the fork for the commit RPCs sent once the votes are in
+            final Context roundContext = Context.current().fork();
+            Context previous = roundContext.attach();
+            try {
+                for(MetadataStoreGrpc.MetadataStoreFutureStub follower: asyncFollowers){
+                    votes.add(follower.logBatch(batch));
+                }
+            } finally {
+                roundContext.detach(previous);
+            }
+            //an unreachable follower is a missing vote, not a failed round
+            return Futures.transformAsync(Futures.successfulAsList(votes), new AsyncFunction<List<SimpleAnswer>, Boolean>() {
+                @Override
+                public ListenableFuture<Boolean> apply(List<SimpleAnswer> answers) {
+                    int vote = 0;
+                    for(SimpleAnswer ans: answers){
+                        if(ans != null && ans.getAnswer())
+                            vote++;
+                    }
+                    synchronized (MetadataStoreImpl.this) {
+                        for(FileInfo entry: entries){
+                            if(Integer.valueOf(entry.getVersion()).equals(pendingVersionMap.get(entry.getFilename())))
+                                pendingVersionMap.remove(entry.getFilename());
                         }
+                        if(vote < asyncFollowers.size()/2){
+                            replicationTimer.stop(start, false);
+                            return Futures.immediateFuture(false);
+                        }
+                        for(FileInfo entry: entries){
+                            applyEntry(entry);
+                        }
+                        commitedIndex = index;
                     }
+                    changeFeed.notifyWatchers();
+                    logger.fine("Metadata store modification successful. Committed " + entries.size()
+                            + " entries up to index " + index);
+                    //the client is answered after followers applied the commit, as with blocking stubs
+                    Index commit = Index.newBuilder().setIndex(index).build();
+                    List<ListenableFuture<Index>> commits = new ArrayList<>();
+                    for(MetadataStoreGrpc.MetadataStoreFutureStub follower: asyncFollowers){
+                        commits.add(follower.commit(commit));
+                    }
+                    return Futures.transform(Futures.successfulAsList(commits), new Function<List<Index>, Boolean>() {
+                        @Override
+                        public Boolean apply(List<Index> indexes) {
+                            replicationTimer.stop(start);
+                            return true;
+                        }
+                    });
                 }
+            }, roundContext.fixedContextExecutor(MoreExecutors.directExecutor()));
+        }
+
+        //whether the delta's edits fit the committed blocklist of its base version
+        private boolean deltaApplies(FileInfo entry) {
+            FileRecord base = file_recordMap.get(entry.getFilename());
+            if(base == null || entry.getBaseVersion() != base.version)
+                return false;
+            try {
+                BlockList.of(base.blocklist).apply(entry.getEditsList());
+                return true;
+            } catch (IndexOutOfBoundsException e) {
+                return false;
             }
+        }
 
+        private static ListenableFuture<Boolean> neverFailing(ListenableFuture<Boolean> future) {
+            return Futures.catching(future, Throwable.class, new Function<Throwable, Boolean>() {
+                @Override
+                public Boolean apply(Throwable t) {
+                    return false;
+                }
+            });
+        }
+
+        //newest version of the file, counting log entries that are still being replicated
+        private synchronized int latestVersion(String filename) {
+            Integer pending = pendingVersionMap.get(filename);
+            if(pending != null)
+                return pending;
+            return committedVersion(filename);
+        }
+
+        private int committedVersion(String filename) {
+            FileRecord record = file_recordMap.get(filename);
+            return record == null ? 0 : record.version;
+        }
 
-            WriteResult response=builder.build();
+        //the old blocklist goes into history before the new record replaces it, so a
+        //reader that sees the new version can still answer with a delta from the old one
+        private void applyEntry(FileInfo fi) {
+            FileRecord previousRecord = file_recordMap.get(fi.getFilename());
+            BlockList previous = BlockList.of(previousRecord == null ? null : previousRecord.blocklist);
+            BlockList blocklist;
+            if(isDelta(fi)){
+                blocklist = previous.apply(fi.getEditsList());
+            } else {
+                //store a full blocklist as edits too when it is close to the previous one, to share chunks
+                List<BlockEdit> edits = BlockList.diff(previous, fi.getBlocklistList());
+                blocklist = BlockList.worthSending(edits, fi.getBlocklistCount())
+                        ? previous.apply(edits) : BlockList.of(fi.getBlocklistList());
+            }
+            if(previousRecord != null)
+                remember(fi.getFilename(), previousRecord.version, previous);
+            file_recordMap.put(fi.getFilename(), new FileRecord(fi.getVersion(), blocklist, fi.getBlockSize()));
+            changeFeed.publish(fi);
+            namespace.apply(fi);
+        }
+
+        private void remember(String filename, int version, List<String> blocklist) {
+            Map<Integer, List<String>> versions = file_historyMap.get(filename);
+            if(versions == null){
+                versions = new History();
+                file_historyMap.put(filename, versions);
+            }
+            synchronized (versions) {
+                versions.put(version, blocklist);
+            }
+        }
+
+        //the HISTORY most recent earlier blocklists of one file, oldest evicted first
+        private static final class History extends LinkedHashMap<Integer, List<String>> {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+                return size() > HISTORY;
+            }
+        }
+
+        private static <T> void respond(StreamObserver<T> responseObserver, T response) {
             responseObserver.onNext(response);
-            responseObserver.onCompleted(); //why don't we delete blocks in blockstore?
+            responseObserver.onCompleted();
         }
 
         /**
@@ -325,14 +785,24 @@ public final class MetadataStore {
 
         @Override
         public void restore(surfstore.SurfStoreBasic.Empty request,
-                            io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
-            if(!this.isLeader) {
-                this.crashed = false;
-                this.leader.update(Empty.newBuilder().build());
+                            final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
+            if(this.isLeader) {
+                respond(responseObserver, Empty.newBuilder().build());
+                return;
             }
-            Empty response = Empty.newBuilder().build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+            this.crashed = false;
+            //reply once the leader has caught this follower up
+            Futures.addCallback(this.leader.update(Empty.newBuilder().build()), new FutureCallback<Empty>() {
+                @Override
+                public void onSuccess(Empty result) {
+                    respond(responseObserver, Empty.newBuilder().build());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(t);
+                }
+            });
         }
 
         @Override
@@ -348,7 +818,7 @@ public final class MetadataStore {
                                io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfo> responseObserver) {
             FileInfo.Builder builder = FileInfo.newBuilder();
             builder.setFilename(request.getFilename());
-            builder.setVersion(file_versionMap.getOrDefault(request.getFilename(), 0));
+            builder.setVersion(committedVersion(request.getFilename()));
             responseObserver.onNext(builder.build());
             responseObserver.onCompleted();
         }
@@ -360,50 +830,122 @@ public final class MetadataStore {
             if(crashed){
                 builder.setAnswer(false);
             } else {
-                logList.add(FileInfo.newBuilder(request).build());
+                synchronized (this) {
+                    logList.add(FileInfo.newBuilder(request).build());
+                }
                 builder.setAnswer(true);
             }
             responseObserver.onNext(builder.build());
             responseObserver.onCompleted();
         }
 
+        @Override
+        public void logBatch(surfstore.SurfStoreBasic.FileInfoList request,
+                             io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.SimpleAnswer> responseObserver) {
+            SimpleAnswer.Builder builder = SimpleAnswer.newBuilder();
+            if(crashed){
+                builder.setAnswer(false);
+            } else {
+                synchronized (this) {
+                    logList.addAll(request.getFilesList());
+                }
+                builder.setAnswer(true);
+            }
+            respond(responseObserver, builder.build());
+        }
+
         @Override
         public void commit(surfstore.SurfStoreBasic.Index request,
                            io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Index> responseObserver) {
             Index.Builder builder = Index.newBuilder();
-            if(logList.size() == request.getIndex()){
-                for(int i = commitedIndex; i < logList.size(); i++){
-                    FileInfo fi = logList.get(i);
-                    file_versionMap.put(fi.getFilename(), fi.getVersion());
-                    file_blocklistMap.put(fi.getFilename(), fi.getBlocklistList());
+            synchronized (this) {
+                if(logList.size() == request.getIndex()){
+                    for(int i = commitedIndex; i < logList.size(); i++){
+                        applyEntry(logList.get(i));
+                    }
+                    commitedIndex = request.getIndex();
                 }
-                commitedIndex = request.getIndex();
+                builder.setIndex(commitedIndex);
             }
-            builder.setIndex(commitedIndex);
+            changeFeed.notifyWatchers();
             responseObserver.onNext(builder.build());
             responseObserver.onCompleted();
         }
 
+        /**
+         * Stream committed changes after request.from_index, then keep the
+         * stream open and push new ones as they commit. A from_index from
+         * another store id gets a resync and every file from the start.
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void watch(surfstore.SurfStoreBasic.WatchRequest request,
+                          io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WatchEvent> responseObserver) {
+            changeFeed.subscribe(request, responseObserver);
+        }
+
+        /**
+         * Stream existing files under request.prefix in name order, in pages,
+         * resuming after request.cursor and stopping after request.limit.
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void listFiles(surfstore.SurfStoreBasic.ListFilesRequest request,
+                              io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfoList> responseObserver) {
+            namespace.list(request, responseObserver);
+        }
+
         @Override
         public void update(surfstore.SurfStoreBasic.Empty request,
-                           io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
-            Index index = Index.newBuilder().setIndex(commitedIndex).build();
+                           final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
+            final ListenableFuture<Boolean> round;
+            synchronized (this) {
+                //queued behind in-flight rounds so the follower replays the log in order
+                round = Futures.transform(replicationTail, new Function<Boolean, Boolean>() {
+                    @Override
+                    public Boolean apply(Boolean previous) {
+                        catchUpFollowers();
+                        return true;
+                    }
+                }, catchUpExecutor);
+                replicationTail = neverFailing(round);
+            }
+
+            Futures.addCallback(round, new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean result) {
+                    respond(responseObserver, Empty.newBuilder().build());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(t);
+                }
+            });
+        }
+
+        private void catchUpFollowers() {
+            List<FileInfo> entries;
+            int leaderCommitted;
+            synchronized (this) {
+                entries = new ArrayList<>(logList);
+                leaderCommitted = commitedIndex;
+            }
+            Index index = Index.newBuilder().setIndex(leaderCommitted).build();
             for(MetadataStoreGrpc.MetadataStoreBlockingStub follower: followers){
                 if(follower.isCrashed(Empty.newBuilder().build()).getAnswer()){
                     continue;
                 }
                 int committedIndex = follower.commit(index).getIndex();
-                while (committedIndex < this.commitedIndex){
-                    for(int i = committedIndex; i < logList.size(); i++){
-                        follower.log(logList.get(i));
+                while (committedIndex < leaderCommitted){
+                    for(int i = committedIndex; i < entries.size(); i++){
+                        follower.log(entries.get(i));
                     }
                     committedIndex = follower.commit(index).getIndex();
                 }
             }
-
-            Empty response = Empty.newBuilder().build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
         }
     }
 }
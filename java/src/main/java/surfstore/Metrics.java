@@ -0,0 +1,138 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Process-wide registry of latency timers and counters.
+ *
+ * Every RPC (through MetricsInterceptor) and a few internal steps such as
+ * hashing and replication record into a named Timer. Counters hold plain
+ * values such as cache hits. report() renders all of them as plain text,
+ * one line per timer or counter.
+ */
+public final class Metrics {
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer created = new Timer(name);
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    //one line per timer, latencies in microseconds, then one "name value" line per counter
+    public static String report() {
+        List<String> names = new ArrayList<>(timers.keySet());
+        Collections.sort(names);
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            timers.get(name).appendTo(sb);
+        }
+        names = new ArrayList<>(counters.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            sb.append(name).append(' ').append(counters.get(name).get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static final class Timer {
+        private final String name;
+        //Recorder takes lock-free writes; intervals are folded into total on read
+        private final Recorder recorder = new Recorder(3);
+        private final Histogram total = new Histogram(3);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void stop(long startNanos) {
+            stop(startNanos, true);
+        }
+
+        public void stop(long startNanos, boolean ok) {
+            recorder.recordValue(Math.max(0, System.nanoTime() - startNanos));
+            count.incrementAndGet();
+            if (!ok) {
+                errors.incrementAndGet();
+            }
+        }
+
+        public void addBytesIn(long bytes) {
+            bytesIn.addAndGet(bytes);
+        }
+
+        public void addBytesOut(long bytes) {
+            bytesOut.addAndGet(bytes);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public synchronized Histogram snapshot() {
+            total.add(recorder.getIntervalHistogram());
+            return total.copy();
+        }
+
+        void appendTo(StringBuilder sb) {
+            Histogram h = snapshot();
+            sb.append(name)
+                    .append(" count=").append(count.get())
+                    .append(" errors=").append(errors.get())
+                    .append(" bytes_in=").append(bytesIn.get())
+                    .append(" bytes_out=").append(bytesOut.get())
+                    .append(" mean_us=").append((long) (h.getMean() / 1000))
+                    .append(" p50_us=").append(h.getValueAtPercentile(50) / 1000)
+                    .append(" p99_us=").append(h.getValueAtPercentile(99) / 1000)
+                    .append(" p999_us=").append(h.getValueAtPercentile(99.9) / 1000)
+                    .append(" max_us=").append(h.getMaxValue() / 1000)
+                    .append('\n');
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package surfstore;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Records count, bytes and latency of every RPC into Metrics.
+ * Server calls are named "rpc.server.<method>", outgoing calls "rpc.client.<method>".
+ */
+public final class MetricsInterceptor implements ServerInterceptor, ClientInterceptor {
+    public static final MetricsInterceptor INSTANCE = new MetricsInterceptor();
+
+    private MetricsInterceptor() {
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        final Metrics.Timer timer = Metrics.timer("rpc.server." + call.getMethodDescriptor().getFullMethodName());
+        final long start = timer.start();
+        ServerCall<ReqT, RespT> timedCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                timer.addBytesOut(sizeOf(message));
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                timer.stop(start, status.isOk());
+                super.close(status, trailers);
+            }
+        };
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(
+                next.startCall(timedCall, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                timer.addBytesIn(sizeOf(message));
+                super.onMessage(message);
+            }
+        };
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        final Metrics.Timer timer = Metrics.timer("rpc.client." + method.getFullMethodName());
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+            private long start;
+
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                start = timer.start();
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        timer.addBytesIn(sizeOf(message));
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        timer.stop(start, status.isOk());
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                timer.addBytesOut(sizeOf(message));
+                super.sendMessage(message);
+            }
+        };
+    }
+
+    //protobuf memoizes the serialized size, so this does not re-encode the message
+    private static long sizeOf(Object message) {
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize();
+        }
+        return 0;
+    }
+}
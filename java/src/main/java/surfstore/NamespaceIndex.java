@@ -0,0 +1,108 @@
+package surfstore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileInfoList;
+import surfstore.SurfStoreBasic.ListFilesRequest;
+
+/**
+ * Sorted index of the files that currently exist, for ListFiles.
+ *
+ * Deleted files are removed from the index rather than kept as tombstones,
+ * so listing a prefix costs O(log n) to find its first name plus O(k) for
+ * the k names returned. Listings read the skip list while writes go on, so
+ * a file changed during a listing may appear with either version, but every
+ * file that exists throughout is listed exactly once.
+ */
+final class NamespaceIndex {
+    static final int PAGE_SIZE = 1000;
+
+    private final ConcurrentNavigableMap<String, Integer> files = new ConcurrentSkipListMap<>();
+
+    //record a committed entry
+    void apply(FileInfo fi) {
+        if (fi.getBlocklistCount() == 1 && fi.getBlocklist(0).equals("0")) {
+            files.remove(fi.getFilename());
+        } else {
+            files.put(fi.getFilename(), fi.getVersion());
+        }
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    //stream the listing in pages of PAGE_SIZE, only while the call is ready
+    void list(ListFilesRequest request, StreamObserver<FileInfoList> responseObserver) {
+        final Listing listing = new Listing((ServerCallStreamObserver<FileInfoList>) responseObserver, request);
+        listing.observer.setOnCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                listing.cancel();
+            }
+        });
+        listing.observer.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                listing.drain();
+            }
+        });
+        listing.drain();
+    }
+
+    private final class Listing {
+        final ServerCallStreamObserver<FileInfoList> observer;
+        final String prefix;
+        //last name sent, or null before the first page
+        String last;
+        //names still allowed by the limit, or -1 for no limit
+        long remaining;
+        boolean done;
+
+        Listing(ServerCallStreamObserver<FileInfoList> observer, ListFilesRequest request) {
+            this.observer = observer;
+            this.prefix = request.getPrefix();
+            //a cursor before the prefix range would only skip names outside it
+            String cursor = request.getCursor();
+            this.last = !cursor.isEmpty() && cursor.compareTo(prefix) >= 0 ? cursor : null;
+            this.remaining = request.getLimit() > 0 ? request.getLimit() : -1;
+        }
+
+        synchronized void cancel() {
+            done = true;
+        }
+
+        synchronized void drain() {
+            while (!done && observer.isReady()) {
+                ConcurrentNavigableMap<String, Integer> tail = last == null
+                        ? files.tailMap(prefix, true) : files.tailMap(last, false);
+                FileInfoList.Builder page = FileInfoList.newBuilder();
+                boolean end = true;
+                for (Map.Entry<String, Integer> e : tail.entrySet()) {
+                    if (!e.getKey().startsWith(prefix) || remaining == 0)
+                        break;
+                    if (page.getFilesCount() == PAGE_SIZE) {
+                        end = false;
+                        break;
+                    }
+                    page.addFiles(FileInfo.newBuilder().setFilename(e.getKey()).setVersion(e.getValue()));
+                    last = e.getKey();
+                    if (remaining > 0)
+                        remaining--;
+                }
+                if (page.getFilesCount() > 0) {
+                    observer.onNext(page.build());
+                }
+                if (end) {
+                    done = true;
+                    observer.onCompleted();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package surfstore;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * Sends the serialized request size in a "request-bytes" header, so that
+ * AdmissionControl can charge a call before its message arrives, and
+ * retries unary calls that a server's admission control rejected with
+ * RESOURCE_EXHAUSTED. Only closes that carry the "retry-after-ms" trailer
+ * are retried; other RESOURCE_EXHAUSTED errors, such as a message over the
+ * size limit, would fail the same way again and are returned at once.
+ *
+ * The request is kept until the call closes, and sent again after
+ * the server's "retry-after-ms" hint plus a full-jitter exponential backoff
+ * (uniform in [0, min(MAX_BACKOFF_MS, BASE_BACKOFF_MS * 2^attempt)]), so
+ * rejected clients do not come back in lockstep. Streaming calls and calls
+ * that already received a response are never retried. After MAX_ATTEMPTS,
+ * or once the call's deadline would pass, the last status is returned.
+ */
+public final class RetryInterceptor implements ClientInterceptor {
+    public static final RetryInterceptor INSTANCE = new RetryInterceptor();
+    static final int MAX_ATTEMPTS = 8;
+    static final long BASE_BACKOFF_MS = 10;
+    static final long MAX_BACKOFF_MS = 2000;
+
+    private static final AtomicLong retries = Metrics.counter("retry.resource_exhausted");
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "grpc-retry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private RetryInterceptor() {
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        if (method.getType() != MethodDescriptor.MethodType.UNARY) {
+            return next.newCall(method, callOptions);
+        }
+        return new RetryingCall<>(method, callOptions, next);
+    }
+
+    //delay before retry number attempt (1-based)
+    static long backoffMillis(int attempt, long retryAfterMillis) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 20));
+        return Math.max(0, retryAfterMillis) + ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Records start/request/sendMessage/halfClose and replays them on a fresh
+     * call for every attempt. The application's listener only hears from the
+     * attempt that is not retried.
+     */
+    private static final class RetryingCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+        private final MethodDescriptor<ReqT, RespT> method;
+        private final CallOptions callOptions;
+        private final Channel next;
+
+        private Listener<RespT> listener;
+        private Metadata headers;
+        private ReqT message;
+        private int requested;
+        private int attempts;
+        private volatile ClientCall<ReqT, RespT> current;
+        private volatile boolean cancelled;
+
+        RetryingCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+            this.method = method;
+            this.callOptions = callOptions;
+            this.next = next;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            this.listener = responseListener;
+            this.headers = headers;
+        }
+
+        @Override
+        public void request(int numMessages) {
+            ClientCall<ReqT, RespT> call = current;
+            if (call != null) {
+                call.request(numMessages);
+            } else {
+                requested += numMessages;
+            }
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            this.message = message;
+        }
+
+        @Override
+        public void halfClose() {
+            attempt();
+        }
+
+        @Override
+        public void cancel(String reason, Throwable cause) {
+            cancelled = true;
+            ClientCall<ReqT, RespT> call = current;
+            if (call != null) {
+                call.cancel(reason, cause);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            ClientCall<ReqT, RespT> call = current;
+            return call != null && call.isReady();
+        }
+
+        private void attempt() {
+            attempts++;
+            ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+            Metadata attemptHeaders = new Metadata();
+            attemptHeaders.merge(headers);
+            //lets AdmissionControl charge the request before it is received
+            if (message instanceof MessageLite) {
+                attemptHeaders.removeAll(AdmissionControl.REQUEST_BYTES);
+                attemptHeaders.put(AdmissionControl.REQUEST_BYTES, Integer.toString(((MessageLite) message).getSerializedSize()));
+            }
+            call.start(new AttemptListener(), attemptHeaders);
+            call.request(requested);
+            call.sendMessage(message);
+            call.halfClose();
+            current = call;
+            if (cancelled) {
+                call.cancel("Cancelled while retrying", null);
+            }
+        }
+
+        private final class AttemptListener extends Listener<RespT> {
+            //a response reached the application, so this attempt is final
+            private boolean committed;
+
+            @Override
+            public void onHeaders(Metadata headers) {
+                committed = true;
+                listener.onHeaders(headers);
+            }
+
+            @Override
+            public void onMessage(RespT message) {
+                committed = true;
+                listener.onMessage(message);
+            }
+
+            @Override
+            public void onReady() {
+                listener.onReady();
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                String hint = trailers.get(AdmissionControl.RETRY_AFTER_MS);
+                if (status.getCode() == Status.Code.RESOURCE_EXHAUSTED && hint != null && !committed && !cancelled
+                        && attempts < MAX_ATTEMPTS) {
+                    long delay = backoffMillis(attempts, Long.parseLong(hint));
+                    Deadline deadline = callOptions.getDeadline();
+                    if (deadline == null || deadline.timeRemaining(TimeUnit.MILLISECONDS) > delay) {
+                        retries.incrementAndGet();
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                attempt();
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                listener.onClose(status, trailers);
+            }
+        }
+    }
+}
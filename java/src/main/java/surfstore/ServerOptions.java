@@ -0,0 +1,146 @@
+package surfstore;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import io.grpc.BindableService;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Threading, admission and metrics options shared by the BlockStore and MetadataStore servers.
+ *
+ * The "-t" family of flags picks the Netty event loop size and the executor
+ * that gRPC handlers run on. Handlers in both servers never block: calls to
+ * other servers use future stubs, follower catch-up after a restore runs on
+ * its own thread, and BlockStore disk reads and writes run on a separate
+ * pool. So a small pool (or "direct") is enough for many concurrent calls.
+ * Every service is wrapped in AdmissionControl, which bounds the requests and
+ * request bytes in flight, and in MetricsInterceptor; --metrics-port exports
+ * the numbers over HTTP.
+ */
+public final class ServerOptions {
+    public static final String EXECUTOR_FIXED = "fixed";
+    public static final String EXECUTOR_FORKJOIN = "forkjoin";
+    public static final String EXECUTOR_DIRECT = "direct";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    //room for a MAX_BLOCK_SIZE block or a FileInfo with a large blocklist
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_INFLIGHT_REQUESTS = 1000;
+    public static final int DEFAULT_MAX_INFLIGHT_MB = 256;
+
+    protected final int numThreads;
+    protected final int eventLoopThreads;
+    protected final String executorKind;
+    protected final int metricsPort;
+    protected final int maxInflightRequests;
+    protected final long maxInflightBytes;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private ExecutorService executor;
+    private MetricsServer metricsServer;
+
+    public ServerOptions(int numThreads, int eventLoopThreads, String executorKind, int metricsPort) {
+        this(numThreads, eventLoopThreads, executorKind, metricsPort,
+                DEFAULT_MAX_INFLIGHT_REQUESTS, (long) DEFAULT_MAX_INFLIGHT_MB << 20);
+    }
+
+    public ServerOptions(int numThreads, int eventLoopThreads, String executorKind, int metricsPort,
+                         int maxInflightRequests, long maxInflightBytes) {
+        this.numThreads = numThreads;
+        this.eventLoopThreads = eventLoopThreads;
+        this.executorKind = executorKind;
+        this.metricsPort = metricsPort;
+        this.maxInflightRequests = maxInflightRequests;
+        this.maxInflightBytes = maxInflightBytes;
+    }
+
+    public ServerOptions(Namespace c_args) {
+        this(c_args.getInt("threads"), c_args.getInt("event_loop_threads"), c_args.getString("executor"),
+                c_args.getInt("metrics_port"), c_args.getInt("max_inflight_requests"),
+                (long) c_args.getInt("max_inflight_mb") << 20);
+    }
+
+    public static void addArguments(ArgumentParser parser) {
+        parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
+                .help("Maximum number of concurrent threads");
+        parser.addArgument("--event-loop-threads").type(Integer.class).setDefault(0)
+                .help("Number of Netty event loop threads (0 uses the Netty default)");
+        parser.addArgument("--executor").type(String.class).setDefault(EXECUTOR_FIXED)
+                .choices(EXECUTOR_FIXED, EXECUTOR_FORKJOIN, EXECUTOR_DIRECT, EXECUTOR_VIRTUAL)
+                .help("Executor for RPC handlers: fixed pool of --threads, work-stealing forkjoin pool, "
+                        + "direct on the event loop, or virtual threads (JDK 21+)");
+        parser.addArgument("--metrics-port").type(Integer.class).setDefault(0)
+                .help("Serve RPC metrics at http://127.0.0.1:<port>/metrics (0 disables)");
+        parser.addArgument("--max-inflight-requests").type(Integer.class).setDefault(DEFAULT_MAX_INFLIGHT_REQUESTS)
+                .help("Reject calls with RESOURCE_EXHAUSTED beyond this many in flight");
+        parser.addArgument("--max-inflight-mb").type(Integer.class).setDefault(DEFAULT_MAX_INFLIGHT_MB)
+                .help("Reject calls with RESOURCE_EXHAUSTED while this many MB of requests are in flight");
+    }
+
+    public Server start(int port, BindableService service) throws IOException {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(eventLoopThreads);
+        NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .channelType(NioServerSocketChannel.class)
+                .maxMessageSize(MAX_MESSAGE_SIZE)
+                .addService(ServerInterceptors.intercept(service,
+                        new AdmissionControl(maxInflightRequests, maxInflightBytes), MetricsInterceptor.INSTANCE));
+
+        if (EXECUTOR_DIRECT.equals(executorKind)) {
+            builder.directExecutor();
+        } else {
+            executor = newExecutor();
+            builder.executor(executor);
+        }
+        if (metricsPort > 0) {
+            metricsServer = new MetricsServer(metricsPort);
+            metricsServer.start();
+        }
+        return builder.build().start();
+    }
+
+    public void shutdown() {
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        switch (executorKind) {
+            case EXECUTOR_FORKJOIN:
+                return new ForkJoinPool(numThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            case EXECUTOR_VIRTUAL:
+                //looked up reflectively so the code still builds for older targets
+                try {
+                    Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) m.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Virtual threads require a JDK 21+ runtime", e);
+                }
+            default:
+                return Executors.newFixedThreadPool(numThreads);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import surfstore.SurfStoreBasic.BlockEdit;
+
+/**
+ * Delta blocklists are applied on every replica, so a wrong edit corrupts
+ * the file everywhere: check splice() against a plain list, and that
+ * applying diff(base, target) to base always gives back target.
+ */
+public class BlockListTest {
+    private static final int CHUNK = BlockList.CHUNK;
+
+    private static List<String> hashes(String prefix, int n) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            res.add(prefix + i);
+        }
+        return res;
+    }
+
+    //diff both ways round, as plain lists and as BlockLists, must apply back to target
+    private static void assertRoundTrip(List<String> base, List<String> target) {
+        List<BlockEdit> edits = BlockList.diff(base, target);
+        assertEquals(target, BlockList.of(base).apply(edits));
+        assertEquals(target, BlockList.of(base).apply(BlockList.diff(BlockList.of(base), BlockList.of(target))));
+    }
+
+    private static List<String> splice(List<String> list, int index, int delete, List<String> hashes) {
+        List<String> res = new ArrayList<>(list);
+        res.subList(index, index + delete).clear();
+        res.addAll(index, hashes);
+        return res;
+    }
+
+    @Test
+    public void ofKeepsOrderAcrossChunks() {
+        List<String> plain = hashes("h", 3 * CHUNK + 7);
+        BlockList list = BlockList.of(plain);
+        assertEquals(plain, list);
+        assertEquals(plain.size(), list.size());
+        assertEquals(BlockList.of(Collections.<String>emptyList()), Collections.<String>emptyList());
+    }
+
+    @Test
+    public void spliceMatchesPlainListAtChunkBoundaries() {
+        List<String> plain = hashes("h", 3 * CHUNK);
+        BlockList list = BlockList.of(plain);
+        int[] indexes = {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK, 3 * CHUNK - 1, 3 * CHUNK};
+        for (int index : indexes) {
+            for (int delete : new int[]{0, 1, 2, CHUNK}) {
+                if (index + delete > plain.size())
+                    continue;
+                for (int insert : new int[]{0, 1, CHUNK + 3}) {
+                    List<String> added = hashes("n" + index + "-", insert);
+                    assertEquals("index " + index + " delete " + delete + " insert " + insert,
+                            splice(plain, index, delete, added), list.splice(index, delete, added));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void spliceRejectsDeletePastTheEnd() {
+        BlockList.of(hashes("h", 10)).splice(8, 3, Collections.<String>emptyList());
+    }
+
+    @Test
+    public void roundTripInsertAndDeleteAtChunkBoundaries() {
+        List<String> base = hashes("h", 3 * CHUNK);
+        for (int index : new int[]{0, CHUNK - 1, CHUNK, 2 * CHUNK, 3 * CHUNK}) {
+            assertRoundTrip(base, splice(base, index, 0, hashes("ins", 5)));
+            if (index < base.size()) {
+                assertRoundTrip(base, splice(base, index, 1, Collections.<String>emptyList()));
+                assertRoundTrip(base, splice(base, index, 1, hashes("rep", 1)));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripGrowShrinkAndEmpty() {
+        List<String> base = hashes("h", CHUNK + 10);
+        assertRoundTrip(base, hashes("h", 2 * CHUNK + 10));
+        assertRoundTrip(base, hashes("h", 10));
+        assertRoundTrip(base, Collections.<String>emptyList());
+        assertRoundTrip(Collections.<String>emptyList(), base);
+    }
+
+    @Test
+    public void diffOfSharedChunksOnlyCoversTheEdit() {
+        BlockList base = BlockList.of(hashes("h", 4 * CHUNK));
+        BlockList target = base.splice(2 * CHUNK + 5, 1, hashes("x", 1));
+        List<BlockEdit> edits = BlockList.diff(base, target);
+        assertEquals(1, edits.size());
+        assertEquals(2 * CHUNK + 5, edits.get(0).getIndex());
+        assertEquals(1, edits.get(0).getDelete());
+        assertEquals(target, base.apply(edits));
+    }
+
+    @Test
+    public void maxEditsCutoff() {
+        int size = 4 * CHUNK;
+        List<String> base = hashes("h", size);
+        //every fourth block changed: one single-hash edit each, far fewer hashes than size / 2
+        List<String> atLimit = new ArrayList<>(base);
+        for (int i = 0; i < BlockList.MAX_EDITS; i++) {
+            atLimit.set(i * 4, "x" + i);
+        }
+        List<BlockEdit> edits = BlockList.diff(base, atLimit);
+        assertEquals(BlockList.MAX_EDITS, edits.size());
+        assertTrue(BlockList.worthSending(edits, size));
+        assertEquals(atLimit, BlockList.of(base).apply(edits));
+
+        List<String> overLimit = new ArrayList<>(atLimit);
+        overLimit.set(2, "y");
+        edits = BlockList.diff(base, overLimit);
+        assertEquals(BlockList.MAX_EDITS + 1, edits.size());
+        assertFalse(BlockList.worthSending(edits, size));
+        assertEquals(overLimit, BlockList.of(base).apply(edits));
+    }
+
+    @Test
+    public void fallsBackToFullListWhenMostBlocksChange() {
+        List<String> base = hashes("h", 100);
+        List<String> target = hashes("t", 100);
+        List<BlockEdit> edits = BlockList.diff(base, target);
+        assertFalse(BlockList.worthSending(edits, target.size()));
+        //the full list a writer sends instead
+        assertEquals(target, BlockList.of(target));
+        assertRoundTrip(base, target);
+
+        List<String> small = splice(base, 50, 1, hashes("x", 1));
+        assertTrue(BlockList.worthSending(BlockList.diff(base, small), small.size()));
+    }
+
+    @Test
+    public void randomEditsRoundTrip() {
+        Random random = new Random(124);
+        BlockList list = BlockList.of(hashes("h", 2 * CHUNK + 17));
+        List<String> model = new ArrayList<>(list);
+        for (int step = 0; step < 500; step++) {
+            int index = random.nextInt(model.size() + 1);
+            int delete = random.nextInt(Math.min(model.size() - index, 2 * CHUNK) + 1);
+            List<String> added = hashes("s" + step + "-", random.nextInt(2 * CHUNK));
+            BlockList next = list.splice(index, delete, added);
+            List<String> nextModel = splice(model, index, delete, added);
+            assertEquals(nextModel, next);
+            assertEquals(nextModel, list.apply(BlockList.diff(list, next)));
+            assertEquals(nextModel, BlockList.of(model).apply(BlockList.diff(model, nextModel)));
+            list = next;
+            model = nextModel;
+        }
+    }
+}